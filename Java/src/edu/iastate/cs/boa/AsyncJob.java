@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Submits a job and follows it in the background until it is done (see
+ * {@link BoaClient#queryAsync(String, InputHandle, boolean)}).
+ *
+ * @author rdyer
+ */
+final class AsyncJob {
+	private static final long POLL_INTERVAL = 5000;
+
+	private final BoaClient client;
+	private final ScheduledExecutorService executor;
+	private final boolean stopOnCancel;
+	private final CompletableFuture<JobHandle> future = new CompletableFuture<JobHandle>();
+	/** closes the connection of the call in progress when the future is cancelled */
+	private final Deadline deadline = new Deadline(null, Long.MAX_VALUE, false);
+	private volatile JobHandle job = null;
+
+	AsyncJob(final BoaClient client, final ScheduledExecutorService executor, final boolean stopOnCancel) {
+		this.client = client;
+		this.executor = executor;
+		this.stopOnCancel = stopOnCancel;
+
+		future.whenComplete(new BiConsumer<JobHandle, Throwable>() {
+			@Override
+			public void accept(final JobHandle result, final Throwable t) {
+				if (future.isCancelled())
+					cancelled();
+			}
+		});
+	}
+
+	CompletableFuture<JobHandle> start(final String query, final InputHandle dataset) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				submit(query, dataset);
+			}
+		});
+		return future;
+	}
+
+	private void submit(final String query, final InputHandle dataset) {
+		if (future.isDone())
+			return;
+
+		final Deadline previous = Deadline.enter(deadline);
+		try {
+			job = client.query(query, dataset);
+		} catch (final BoaException e) {
+			future.completeExceptionally(e);
+			return;
+		} finally {
+			Deadline.exit(previous);
+		}
+
+		// the future may have been cancelled while the job was being submitted
+		if (future.isCancelled())
+			cancelled();
+		else
+			check(job);
+	}
+
+	private void poll() {
+		if (future.isDone())
+			return;
+
+		final Deadline previous = Deadline.enter(deadline);
+		try {
+			check(client.getJob(job.getId()));
+		} catch (final BoaException e) {
+			future.completeExceptionally(e);
+		} finally {
+			Deadline.exit(previous);
+		}
+	}
+
+	private void check(final JobHandle j) {
+		if (j.getCompilerStatus() == CompileStatus.ERROR
+				|| j.getExecutionStatus() == ExecutionStatus.FINISHED
+				|| j.getExecutionStatus() == ExecutionStatus.ERROR) {
+			future.complete(j);
+			return;
+		}
+
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void cancelled() {
+		final JobHandle j = job;
+		// a submission in progress is left to finish, so its job can be stopped
+		if (stopOnCancel && j == null)
+			return;
+		deadline.cancel();
+		if (!stopOnCancel)
+			return;
+		job = null;
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					client.stop(j.getId());
+				} catch (final BoaException e) {
+					// the job keeps running
+				}
+			}
+		});
+	}
+}
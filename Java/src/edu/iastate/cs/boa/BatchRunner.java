@@ -0,0 +1,457 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a large batch of queries while keeping a bounded number of jobs in
+ * flight on the server.
+ *
+ * <p>
+ * Tasks are submitted until the in-flight limit is reached.  All in-flight
+ * jobs are then checked together (a page of the job list at a time, rather
+ * than one request per job), and as jobs finish their outputs are downloaded
+ * on a separate pool of threads while more tasks are submitted.
+ * </p>
+ *
+ * <p>
+ * Every submission and completion is appended to a journal file.  If the
+ * process is restarted and {@link #run(Iterable, Listener)} is called again
+ * with the same tasks, tasks that already completed or failed are skipped,
+ * and tasks that were submitted are tracked again instead of resubmitted.
+ * </p>
+ *
+ * <p>
+ * Example usage:
+ * </p>
+ *
+ * <pre>
+ * final BatchRunner runner = new BatchRunner(client, new File("batch.journal"), new File("outputs"));
+ * runner.setMaxInFlight(20);
+ * runner.run(tasks, new BatchRunner.Listener() {
+ *   public void finished(final BatchRunner.Task task, final JobHandle job, final JobOutput output) {
+ *     System.out.println(task.getId() + " finished: " + output.getFile());
+ *   }
+ * });
+ * </pre>
+ *
+ * @author rdyer
+ */
+public final class BatchRunner {
+	/**
+	 * A query to run against a dataset.
+	 */
+	public static final class Task {
+		private final String id;
+		/**
+		 * Returns the task's unique identifier.
+		 *
+		 * @return the task's id
+		 */
+		public final String getId() { return id; }
+
+		private final String query;
+		/**
+		 * Returns the query source code.
+		 *
+		 * @return the query
+		 */
+		public final String getQuery() { return query; }
+
+		private final InputHandle dataset;
+		/**
+		 * Returns the input dataset to query.
+		 *
+		 * @return the dataset
+		 */
+		public final InputHandle getDataset() { return dataset; }
+
+		/**
+		 * Creates a task.
+		 *
+		 * @param id a unique, stable identifier for the task (used in the journal and output file name)
+		 * @param query the query source code
+		 * @param dataset the input dataset to query
+		 */
+		public Task(final String id, final String query, final InputHandle dataset) {
+			this.id = id;
+			this.query = query;
+			this.dataset = dataset;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public final String toString() {
+			return id + " - " + dataset;
+		}
+	}
+
+	/**
+	 * Receives events from a batch run.  Methods may be called from several
+	 * threads at once.  All methods do nothing by default.
+	 */
+	public static abstract class Listener {
+		/**
+		 * Called when a task's job was submitted.
+		 *
+		 * @param task the task
+		 * @param job the new job
+		 */
+		public void submitted(final Task task, final JobHandle job) { }
+
+		/**
+		 * Called when a task's job finished and its output was downloaded.
+		 *
+		 * @param task the task
+		 * @param job the finished job
+		 * @param output the job's output
+		 */
+		public void finished(final Task task, final JobHandle job, final JobOutput output) { }
+
+		/**
+		 * Called when a task failed to submit, compile, run or download.
+		 *
+		 * @param task the task
+		 * @param job the task's job, or <code>null</code> if it was never submitted
+		 * @param e the reason the task failed
+		 */
+		public void failed(final Task task, final JobHandle job, final BoaException e) { }
+
+		/**
+		 * Called after each round of checking the in-flight jobs.
+		 *
+		 * @param submitted how many tasks were submitted so far
+		 * @param completed how many tasks completed so far
+		 * @param failed how many tasks failed so far
+		 * @param inFlight how many jobs are currently in flight on the server
+		 */
+		public void progress(final int submitted, final int completed, final int failed, final int inFlight) { }
+	}
+
+	private final BoaClient client;
+	private final File journal;
+	private final File outputDir;
+
+	private int maxInFlight = 10;
+	private long pollInterval = 10000;
+	private int downloadThreads = 2;
+
+	private final AtomicInteger submitted = new AtomicInteger();
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	/** set when a run ends early, so queued downloads are skipped */
+	private volatile boolean stopping = false;
+
+	/**
+	 * Creates a batch runner.
+	 *
+	 * @param client the (logged in) client to submit jobs with
+	 * @param journal the journal file to record progress in
+	 * @param outputDir the directory to download outputs into
+	 */
+	public BatchRunner(final BoaClient client, final File journal, final File outputDir) {
+		this.client = client;
+		this.journal = journal;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * Sets the most jobs allowed in flight on the server at once (default 10).
+	 *
+	 * @param maxInFlight the in-flight limit
+	 */
+	public void setMaxInFlight(final int maxInFlight) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("Argument 'maxInFlight' must be positive.");
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Sets how often the in-flight jobs are checked (default 10 seconds).
+	 *
+	 * @param pollInterval the time between checks, in milliseconds
+	 */
+	public void setPollInterval(final long pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+	/**
+	 * Sets how many outputs are downloaded at once (default 2).
+	 *
+	 * @param downloadThreads the number of download threads
+	 */
+	public void setDownloadThreads(final int downloadThreads) {
+		if (downloadThreads < 1)
+			throw new IllegalArgumentException("Argument 'downloadThreads' must be positive.");
+		this.downloadThreads = downloadThreads;
+	}
+
+	/**
+	 * Runs all tasks, returning once every task has completed or failed.
+	 *
+	 * @param tasks the tasks to run
+	 * @param listener receives events about the tasks
+	 * @throws BoaException if the journal can not be read or written, or the run is interrupted
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public void run(final Iterable<Task> tasks, final Listener listener) throws BoaException, NotLoggedInException {
+		if (!outputDir.isDirectory() && !outputDir.mkdirs())
+			throw new BoaException("Could not create output directory '" + outputDir + "'.");
+
+		final Set<String> finished = new HashSet<String>();
+		final Map<String, Integer> resumed = new HashMap<String, Integer>();
+		readJournal(finished, resumed);
+		stopping = false;
+
+		final Map<Integer, Task> inFlight = new LinkedHashMap<Integer, Task>();
+		final ExecutorService downloads = Executors.newFixedThreadPool(downloadThreads, OutputPrefetcher.daemonThreads("boa-batch"));
+
+		final Writer log;
+		try {
+			log = new OutputStreamWriter(new FileOutputStream(journal, true), StandardCharsets.UTF_8);
+		} catch (final IOException e) {
+			downloads.shutdownNow();
+			throw new BoaException(e.getMessage(), e);
+		}
+
+		try {
+			final Iterator<Task> it = tasks.iterator();
+
+			while (it.hasNext() || !inFlight.isEmpty()) {
+				// fill the in-flight window
+				while (inFlight.size() < maxInFlight && it.hasNext()) {
+					final Task task = it.next();
+					if (finished.contains(task.getId()))
+						continue;
+
+					final Integer jobId = resumed.remove(task.getId());
+					if (jobId != null) {
+						inFlight.put(jobId, task);
+						continue;
+					}
+
+					try {
+						final JobHandle job = client.query(task.getQuery(), task.getDataset());
+						append(log, "S", task.getId(), job.getId());
+						inFlight.put(job.getId(), task);
+						submitted.incrementAndGet();
+						listener.submitted(task, job);
+					} catch (final NotLoggedInException e) {
+						throw e;
+					} catch (final BoaException e) {
+						append(log, "F", task.getId(), 0);
+						failed.incrementAndGet();
+						listener.failed(task, null, e);
+					}
+				}
+
+				if (inFlight.isEmpty())
+					break;
+
+				Thread.sleep(pollInterval);
+
+				final Map<Integer, JobHandle> jobs;
+				try {
+					jobs = client.pollJobs(inFlight.keySet());
+				} catch (final NotLoggedInException e) {
+					throw e;
+				} catch (final BoaException e) {
+					// try again on the next round
+					continue;
+				}
+
+				final Iterator<Map.Entry<Integer, Task>> inFlightIt = inFlight.entrySet().iterator();
+				while (inFlightIt.hasNext()) {
+					final Map.Entry<Integer, Task> e = inFlightIt.next();
+					final Task task = e.getValue();
+					final JobHandle job = jobs.get(e.getKey());
+
+					if (job == null) {
+						inFlightIt.remove();
+						append(log, "F", task.getId(), e.getKey());
+						failed.incrementAndGet();
+						listener.failed(task, null, new BoaException("Job " + e.getKey() + " no longer exists."));
+					} else if (job.getCompilerStatus() == CompileStatus.ERROR || job.getExecutionStatus() == ExecutionStatus.ERROR) {
+						inFlightIt.remove();
+						append(log, "F", task.getId(), job.getId());
+						failed.incrementAndGet();
+						listener.failed(task, job, new BoaException("Job " + job.getId() + " failed: " + job));
+					} else if (job.getExecutionStatus() == ExecutionStatus.FINISHED) {
+						inFlightIt.remove();
+						downloads.execute(new Runnable() {
+							@Override
+							public void run() {
+								download(log, task, job, listener);
+							}
+						});
+					}
+				}
+
+				listener.progress(submitted.get(), completed.get(), failed.get(), inFlight.size());
+			}
+
+			downloads.shutdown();
+			while (!downloads.awaitTermination(1, TimeUnit.MINUTES))
+				;
+			listener.progress(submitted.get(), completed.get(), failed.get(), 0);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BoaException("Interrupted while running batch.", e);
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		} finally {
+			// running downloads append to the journal, so it is closed after them
+			stop(downloads);
+			try {
+				log.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Skips the queued downloads and waits for the running ones, which may
+	 * still append to the journal.  Skipped tasks are tracked again on the
+	 * next run, since the journal has their submission but not their download.
+	 */
+	private void stop(final ExecutorService downloads) {
+		stopping = true;
+		downloads.shutdown();
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				if (downloads.awaitTermination(1, TimeUnit.MINUTES))
+					break;
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Returns how many tasks were submitted by this runner.
+	 *
+	 * @return the number of submitted tasks
+	 */
+	public int getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * Returns how many tasks completed in this runner.
+	 *
+	 * @return the number of completed tasks
+	 */
+	public int getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * Returns how many tasks failed in this runner.
+	 *
+	 * @return the number of failed tasks
+	 */
+	public int getFailedCount() {
+		return failed.get();
+	}
+
+	private void download(final Writer log, final Task task, final JobHandle job, final Listener listener) {
+		if (stopping)
+			return;
+
+		try {
+			final File f = new File(outputDir, encode(task.getId()) + ".txt");
+			client.getOutput(job, f, DownloadScheduler.Priority.BULK);
+			append(log, "D", task.getId(), job.getId());
+			completed.incrementAndGet();
+			listener.finished(task, job, new JobOutput(f));
+		} catch (final BoaException e) {
+			failed.incrementAndGet();
+			listener.failed(task, job, e);
+		} catch (final IOException e) {
+			failed.incrementAndGet();
+			listener.failed(task, job, new BoaException(e.getMessage(), e));
+		}
+	}
+
+	private void readJournal(final Set<String> finished, final Map<String, Integer> resumed) throws BoaException {
+		if (!journal.exists())
+			return;
+
+		try (final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				final String[] parts = line.split(" ");
+				if (parts.length != 3)
+					continue;
+
+				final String id = URLDecoder.decode(parts[1], "UTF-8");
+				if ("S".equals(parts[0])) {
+					resumed.put(id, Integer.parseInt(parts[2]));
+				} else {
+					resumed.remove(id);
+					finished.add(id);
+				}
+			}
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		} catch (final NumberFormatException e) {
+			throw new BoaException("Invalid journal '" + journal + "'.", e);
+		}
+	}
+
+	private static void append(final Writer log, final String type, final String taskId, final int jobId) throws IOException {
+		synchronized (log) {
+			log.write(type + " " + encode(taskId) + " " + jobId + "\n");
+			log.flush();
+		}
+	}
+
+	private static String encode(final String s) {
+		try {
+			return URLEncoder.encode(s, "UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -18,17 +18,40 @@ package edu.iastate.cs.boa;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -36,6 +59,9 @@ import java.util.zip.InflaterInputStream;
 import org.apache.xmlrpc.XmlRpcException;
 import org.apache.xmlrpc.XmlRpcRequest;
 import org.apache.xmlrpc.client.*;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.apache.xmlrpc.util.HttpUtil;
+import org.xml.sax.SAXException;
 
 /**
  * A client class for accessing Boa's API.
@@ -102,8 +128,94 @@ public class BoaClient implements AutoCloseable {
 	protected static final String METHOD_JOB_OUTPUT_SIZE     = "job.outputsize";
 	protected static final String METHOD_JOB_PAGED_OUTPUT    = "job.pagedoutput";
 
+	/** the API methods that start a session */
+	private static final Set<String> SESSION_METHODS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+		METHOD_SYSTEM_CONNECT,
+		METHOD_USER_LOGIN,
+		METHOD_USER_TOKEN
+	)));
+
+	/** the API methods that only read state, and so are safe to share, hedge or retry */
+	protected static final Set<String> READ_METHODS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+		METHOD_BOA_DATASETS,
+		METHOD_BOA_JOB,
+		METHOD_BOA_JOBS,
+		METHOD_BOA_JOBS_COUNT,
+		METHOD_BOA_JOBS_RANGE,
+		METHOD_JOB_PUBLIC,
+		METHOD_JOB_URL,
+		METHOD_JOB_PUBLIC_URL,
+		METHOD_JOB_COMPILER_ERRORS,
+		METHOD_JOB_SOURCE,
+		METHOD_JOB_OUTPUT,
+		METHOD_JOB_OUTPUT_SIZE,
+		METHOD_JOB_PAGED_OUTPUT
+	)));
+
 	protected final XmlRpcClient xmlRpcClient = new XmlRpcClient();
-	protected boolean loggedIn = false;
+	protected volatile boolean loggedIn = false;
+
+	/** the session cookie and CSRF token sent with each call, once logged in */
+	private volatile String sessionCookie = null;
+	private volatile String csrfToken = null;
+	/** counts sessions, so callers that saw the same expired session log in again only once */
+	private volatile long sessionGeneration = 0;
+	/** when the current session was set, in {@link System#nanoTime()} terms */
+	private volatile long sessionStarted = 0;
+	private final Object sessionLock = new Object();
+	private String username = null;
+	private String password = null;
+	private final String endpoint;
+
+	protected volatile ChunkStore outputStore = null;
+	protected volatile OutputPrefetcher prefetcher = null;
+	protected volatile DownloadScheduler downloadScheduler;
+	protected volatile QueryCache queryCache = null;
+	protected volatile RequestLimiter requestLimiter = null;
+	protected volatile SessionStore sessionStore = null;
+	protected volatile DatasetRegistry datasetRegistry;
+	/** the registry the client created itself, and so closes */
+	private DatasetRegistry ownDatasetRegistry = null;
+	protected final BoaRuntime runtime;
+	/** the client's share of the runtime's background threads, if it has a runtime */
+	private final ScheduledExecutorService runtimeExecutor;
+	protected volatile HedgingPolicy hedgingPolicy = null;
+	protected volatile HostCoordinator hostCoordinator = null;
+	protected volatile TrafficCapture trafficCapture = null;
+	protected volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	protected volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	protected volatile long callTimeout = 0;
+	protected volatile int bulkParallelism = DEFAULT_BULK_PARALLELISM;
+	protected volatile boolean requestCompression = false;
+	/** whether the server accepts gzip compressed requests, as far as we know */
+	private volatile int gzipRequests = GZIP_UNKNOWN;
+	private ScheduledExecutorService asyncExecutor = null;
+	private final SingleFlight<String, Object> inFlight = new SingleFlight<String, Object>();
+	private JobEventPublisher jobEvents = null;
+
+	/** how long to wait for a connection to the server, in milliseconds */
+	private static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+	/** how long to wait for more data from the server, in milliseconds */
+	private static final int DEFAULT_READ_TIMEOUT = 300000;
+
+	private static final int GZIP_UNKNOWN = 0;
+	private static final int GZIP_SUPPORTED = 1;
+	private static final int GZIP_UNSUPPORTED = 2;
+
+	/** how old a session must be before an access failure is taken as it expiring, in milliseconds */
+	private static final long MIN_SESSION_AGE = 60000;
+
+	/** how often a job group checks its unfinished jobs by default, in milliseconds */
+	private static final long JOB_GROUP_POLL_INTERVAL = 5000;
+	/** how often the job event feed polls, in milliseconds */
+	private static final long JOB_EVENTS_POLL_INTERVAL = 10000;
+	/** how many of the most recent jobs the job event feed watches */
+	private static final int JOB_EVENTS_WINDOW = 100;
+	/** how many calls a bulk operation makes at once by default */
+	private static final int DEFAULT_BULK_PARALLELISM = 8;
+
+	/** how many pages of the job list to check when polling jobs */
+	private static final int MAX_POLL_PAGES = 3;
 
 	/**
 	 * Create a new Boa API client, using the standard domain/path.
@@ -119,6 +231,18 @@ public class BoaClient implements AutoCloseable {
 	 * @param path the path to the API (must start with '/')
 	 */
 	public BoaClient(final String domain, final String path) {
+		this(null, domain, path);
+	}
+
+	/**
+	 * Create a new Boa API client that shares the resources of a runtime
+	 * with other clients, by providing the domain/path to the API.
+	 *
+	 * @param runtime the runtime to share, or <code>null</code> for a client with its own resources
+	 * @param domain the domain hosting the API (can not contain '/')
+	 * @param path the path to the API (must start with '/')
+	 */
+	public BoaClient(final BoaRuntime runtime, final String domain, final String path) {
 		if (domain.indexOf("/") != -1)
 			throw new IllegalArgumentException("Argument 'domain' should not contain the protocol (https://) or a path (/).");
 		if (path.indexOf("/") != 0)
@@ -130,6 +254,7 @@ public class BoaClient implements AutoCloseable {
 		 * documentation for "Services 3.X". <a href="http://drupal.org/node/783236">http://drupal.org/node/783236</a>
 		 */
 		final String endpointURL = "https://" + domain + path;
+		endpoint = endpointURL;
 		final XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
 		try {
 			config.setServerURL(new URL(endpointURL));
@@ -137,7 +262,193 @@ public class BoaClient implements AutoCloseable {
 			// only happens if no/invalid protocol given, but we ensure this never happens
 		}
 
+		config.setConnectionTimeout(DEFAULT_CONNECT_TIMEOUT);
+		config.setReplyTimeout(DEFAULT_READ_TIMEOUT);
+		// responses are only compressed if the server supports it
+		config.setGzipRequesting(true);
 		xmlRpcClient.setConfig(config);
+
+		this.runtime = runtime;
+		if (runtime != null) {
+			runtimeExecutor = runtime.newClientExecutor();
+			downloadScheduler = runtime.getDownloadScheduler();
+			datasetRegistry = runtime.getDatasetRegistry(endpointURL);
+			requestLimiter = runtime.getRequestLimiter();
+			hedgingPolicy = runtime.getHedgingPolicy();
+		} else {
+			runtimeExecutor = null;
+			downloadScheduler = new DownloadScheduler(8, 4, 0);
+			datasetRegistry = ownDatasetRegistry = new DatasetRegistry();
+		}
+
+		xmlRpcClient.setTransportFactory(new XmlRpcSunHttpTransportFactory(xmlRpcClient) {
+			public XmlRpcTransport getTransport() {
+				return new SessionTransport();
+			}
+		});
+	}
+
+	/**
+	 * A transport that sets the session cookie and CSRF token, compresses the
+	 * request if enabled, and records or replays the call when a traffic
+	 * capture is set.
+	 */
+	private final class SessionTransport extends XmlRpcSunHttpTransport {
+		private String method;
+		private long start;
+		private String key;
+		private TrafficCapture capture;
+		private TrafficCapture.Exchange replayed;
+		private boolean compress;
+
+		SessionTransport() {
+			super(xmlRpcClient);
+			compress = requestCompression && gzipRequests != GZIP_UNSUPPORTED;
+		}
+
+		@Override
+		public Object sendRequest(final XmlRpcRequest request) throws XmlRpcException {
+			if (!compress)
+				return super.sendRequest(request);
+
+			try {
+				final Object ret = super.sendRequest(request);
+				gzipRequests = GZIP_SUPPORTED;
+				return ret;
+			} catch (final XmlRpcException e) {
+				// until a compressed request went through, a rejected one is sent again uncompressed
+				if (gzipRequests != GZIP_UNKNOWN || !isEncodingRejected(e))
+					throw e;
+				gzipRequests = GZIP_UNSUPPORTED;
+				compress = false;
+				return super.sendRequest(request);
+			}
+		}
+
+		@Override
+		protected boolean isCompressingRequest(final XmlRpcStreamRequestConfig config) {
+			return compress;
+		}
+
+		@Override
+		protected void setCompressionHeaders(final XmlRpcHttpClientConfig config) {
+			if (compress)
+				setRequestHeader("Content-Encoding", "gzip");
+			if (config.isGzipRequesting())
+				setRequestHeader("Accept-Encoding", "gzip");
+		}
+
+		@Override
+		protected URLConnection newURLConnection(final URL url) throws IOException {
+			final URLConnection conn = super.newURLConnection(url);
+			prepare(conn);
+			return conn;
+		}
+
+		@Override
+		protected void close() throws XmlRpcClientException {
+			try {
+				super.close();
+			} finally {
+				final Deadline deadline = Deadline.current();
+				if (deadline != null && getURLConnection() != null)
+					deadline.unregister(getURLConnection());
+			}
+		}
+
+		@Override
+		protected void initHttpHeaders(final XmlRpcRequest request) throws XmlRpcClientException {
+			super.initHttpHeaders(request);
+			method = request.getMethodName();
+			final String cookie = sessionCookie;
+			final String token = csrfToken;
+			// calls that start a session must not send the old one
+			if (cookie != null && !SESSION_METHODS.contains(method)) {
+				setRequestHeader("Cookie", cookie);
+				setRequestHeader("X-CSRF-Token", token);
+			}
+		}
+
+		@Override
+		protected void writeRequest(final XmlRpcStreamTransport.ReqWriter writer) throws IOException, XmlRpcException, SAXException {
+			capture = trafficCapture;
+			if (capture == null) {
+				super.writeRequest(writer);
+				return;
+			}
+
+			start = System.nanoTime();
+			final ByteArrayOutputStream request = new ByteArrayOutputStream();
+			writer.write(request);
+			// calls that start a session are matched by name only, so replays do not depend on the credentials
+			key = SESSION_METHODS.contains(method) ? method : method + " " + Util.sha256(request.toByteArray());
+
+			if (capture.isReplaying()) {
+				replayed = capture.replay(TrafficCapture.API_CALL, key);
+				return;
+			}
+
+			final OutputStream out = getURLConnection().getOutputStream();
+			try {
+				request.writeTo(out);
+			} finally {
+				out.close();
+			}
+		}
+
+		@Override
+		protected InputStream getInputStream() throws XmlRpcException {
+			if (capture == null)
+				return super.getInputStream();
+
+			if (replayed != null) {
+				if (replayed.status < 200 || replayed.status > 299)
+					throw new XmlRpcHttpTransportException(replayed.status, replayed.message);
+				try {
+					return replayed.open();
+				} catch (final IOException e) {
+					throw new XmlRpcException("Failed to create input stream: " + e.getMessage(), e);
+				}
+			}
+
+			try {
+				final HttpURLConnection conn = (HttpURLConnection)getURLConnection();
+				final int status = conn.getResponseCode();
+				if (status < 200 || status > 299) {
+					final String message = conn.getResponseMessage();
+					record(status, message, null, new byte[0]);
+					throw new XmlRpcHttpTransportException(status, message);
+				}
+
+				final ByteArrayOutputStream body = new ByteArrayOutputStream();
+				try (final InputStream in = conn.getInputStream()) {
+					final byte[] buf = new byte[4096];
+					int n;
+					while ((n = in.read(buf)) != -1)
+						body.write(buf, 0, n);
+				}
+				final byte[] bytes = body.toByteArray();
+				record(status, null, conn.getContentEncoding(), bytes);
+				return new ByteArrayInputStream(bytes);
+			} catch (final IOException e) {
+				throw new XmlRpcException("Failed to create input stream: " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		protected boolean isResponseGzipCompressed(final XmlRpcStreamRequestConfig config) {
+			if (replayed != null)
+				return HttpUtil.isUsingGzipEncoding(replayed.encoding);
+			return super.isResponseGzipCompressed(config);
+		}
+
+		private void record(final int status, final String message, final String encoding, final byte[] body) {
+			try {
+				capture.record(TrafficCapture.API_CALL, key, status, message, encoding, System.nanoTime() - start, body);
+			} catch (final IOException e) {
+				// the call itself still succeeds
+			}
+		}
 	}
 
 	private Object execute(final Class c, final String cmd, final Object[] args) throws BoaException, XmlRpcException  {
@@ -149,7 +460,117 @@ public class BoaClient implements AutoCloseable {
 	}
 
 	private Object execute(final String cmd, final Object[] args) throws XmlRpcException  {
-		return xmlRpcClient.execute(cmd, args);
+		if (!READ_METHODS.contains(cmd))
+			return call(cmd, args);
+
+		final Deadline deadline = Deadline.current();
+		// hedged attempts run on other threads, each under a deadline within the caller's
+		final Callable<Object> attempt = new Callable<Object>() {
+			@Override
+			public Object call() throws XmlRpcException {
+				return BoaClient.this.call(cmd, args);
+			}
+		};
+
+		final Callable<Object> hedged = new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				final HedgingPolicy hedging = hedgingPolicy;
+				if (hedging == null)
+					return attempt.call();
+				return hedging.execute(cmd, attempt);
+			}
+		};
+
+		try {
+			// a shared call could outlast the caller's deadline, and could not be cancelled with it
+			if (deadline != null)
+				return hedged.call();
+
+			// identical reads already in flight share one request
+			final boolean[] led = new boolean[1];
+			try {
+				return inFlight.execute(cmd + Arrays.deepToString(args), new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						led[0] = true;
+						return hedged.call();
+					}
+				});
+			} catch (final Exception e) {
+				// the leader ran out of its own time, which says nothing about this call
+				if (led[0] || !Util.isDeadlineFailure(e))
+					throw e;
+				return hedged.call();
+			}
+		} catch (final XmlRpcException e) {
+			throw e;
+		} catch (final RuntimeException e) {
+			throw e;
+		} catch (final Exception e) {
+			if (e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			throw new XmlRpcException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Makes one attempt at an API call.  If the call fails because the
+	 * session expired, logs in again and, for read-only calls, replays it.
+	 */
+	private Object call(final String cmd, final Object[] args) throws XmlRpcException  {
+		final long generation = sessionGeneration;
+		try {
+			return send(cmd, args);
+		} catch (final XmlRpcException e) {
+			if (SESSION_METHODS.contains(cmd) || METHOD_USER_LOGOUT.equals(cmd) || !isAuthFailure(e) || !reauthenticate(generation))
+				throw e;
+			if (!READ_METHODS.contains(cmd))
+				throw e;
+			return send(cmd, args);
+		}
+	}
+
+	/**
+	 * Sends an API call through the request limiter, if any.
+	 */
+	private Object send(final String cmd, final Object[] args) throws XmlRpcException  {
+		final RequestLimiter limiter = requestLimiter;
+		long start = 0;
+		if (limiter != null) {
+			try {
+				start = limiter.acquire(cmd);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new XmlRpcException("Interrupted while waiting to call '" + cmd + "'.", e);
+			}
+		}
+
+		final long timeout = callTimeout;
+		final Deadline deadline = timeout > 0 ? Deadline.after(timeout, TimeUnit.MILLISECONDS) : null;
+		final long sent = System.nanoTime();
+		boolean failed = true;
+		boolean overloaded = false;
+		try {
+			final Object ret = xmlRpcClient.execute(cmd, args);
+			failed = false;
+			return ret;
+		} catch (final XmlRpcException e) {
+			// faults returned by the server are not a sign of overload, failing to reach it is
+			overloaded = e instanceof XmlRpcHttpTransportException || e instanceof XmlRpcClientException;
+			final Deadline current = Deadline.current();
+			final String why = current == null ? null : current.failure();
+			if (why != null)
+				throw new XmlRpcException(why, e);
+			throw e;
+		} finally {
+			if (deadline != null)
+				deadline.close();
+			if (limiter != null)
+				limiter.release(cmd, start, overloaded);
+			if (runtime != null)
+				runtime.record(cmd, System.nanoTime() - sent, failed);
+		}
 	}
 
 	/**
@@ -165,25 +586,30 @@ public class BoaClient implements AutoCloseable {
 
 		loggedIn = false;
 
+		synchronized (sessionLock) {
+			// a saved session is checked by the first call, which logs in again if needed
+			final SessionStore store = sessionStore;
+			final SessionStore.Session saved = store == null ? null : store.load(endpoint, username, password);
+			if (saved != null) {
+				setSession(saved.cookie, saved.token);
+				// a saved session may already have expired, so may be replaced at once
+				sessionStarted -= TimeUnit.MILLISECONDS.toNanos(MIN_SESSION_AGE);
+			} else {
+				authenticate(username, password);
+			}
+			this.username = username;
+			this.password = password;
+		}
+
+		loggedIn = true;
+	}
+
+	private void authenticate(final String username, final String password) throws LoginException {
 		try {
 			@SuppressWarnings("unchecked")
 			final Map<String, String> response = (Map<String, String>)execute(Map.class, METHOD_USER_LOGIN, new String[] { username, password });
 
-			// construct a custom transport that sets the session cookie and CSRF token
-			final String cookie = response.get("session_name") + "=" + response.get("sessid");
-			final String token = (String)response.get("token");
-			xmlRpcClient.setTransportFactory(new XmlRpcSunHttpTransportFactory(xmlRpcClient) {
-				public XmlRpcTransport getTransport() {
-					return new XmlRpcSunHttpTransport(xmlRpcClient) {
-						@Override
-						protected void initHttpHeaders(final XmlRpcRequest request) throws XmlRpcClientException {
-							super.initHttpHeaders(request);
-							setRequestHeader("Cookie", cookie);
-							setRequestHeader("X-CSRF-Token", token);
-						}
-					};
-				}
-			});
+			setSession(response.get("session_name") + "=" + response.get("sessid"), (String)response.get("token"));
 		} catch (final BoaException e) {
 			throw new LoginException(e.getMessage(), e);
 		} catch (final XmlRpcHttpTransportException e) {
@@ -202,7 +628,14 @@ public class BoaClient implements AutoCloseable {
 			}
 		}
 
-		loggedIn = true;
+		final SessionStore store = sessionStore;
+		if (store != null) {
+			try {
+				store.save(endpoint, username, password, sessionCookie, csrfToken);
+			} catch (final BoaException e) {
+				// the next process will just log in again
+			}
+		}
 	}
 
 	@SuppressWarnings("unchecked")
@@ -212,21 +645,7 @@ public class BoaClient implements AutoCloseable {
 			final String cookie = response.get("session_name") + "=" + response.get("sessid");
 
 			response = (Map<String, String>)execute(Map.class, METHOD_USER_TOKEN, new Object[] {});
-			final String token = (String)response.get("token");
-
-			// construct a custom transport that sets the session cookie and CSRF token
-			xmlRpcClient.setTransportFactory(new XmlRpcSunHttpTransportFactory(xmlRpcClient) {
-				public XmlRpcTransport getTransport() {
-					return new XmlRpcSunHttpTransport(xmlRpcClient) {
-						@Override
-						protected void initHttpHeaders(final XmlRpcRequest request) throws XmlRpcClientException {
-							super.initHttpHeaders(request);
-							setRequestHeader("Cookie", cookie);
-							setRequestHeader("X-CSRF-Token", token);
-						}
-					};
-				}
-			});
+			setSession(cookie, (String)response.get("token"));
 		} catch (final BoaException e) {
 			throw new LoginException(e.getMessage(), e);
 		} catch (final XmlRpcHttpTransportException e) {
@@ -242,42 +661,462 @@ public class BoaClient implements AutoCloseable {
 		}
 	}
 
+	private void setSession(final String cookie, final String token) {
+		sessionCookie = cookie;
+		csrfToken = token;
+		sessionStarted = System.nanoTime();
+		sessionGeneration++;
+	}
+
+	/**
+	 * Logs in again after the session expired.  Only the first caller that
+	 * saw a given session fail logs in; the others wait for it and then use
+	 * the new session.  A session that was only just set is not replaced,
+	 * since a call failing with it was refused for another reason.
+	 *
+	 * @param generation the session the caller's call failed with
+	 * @return <code>true</code> if there is a new session to retry with
+	 */
+	private boolean reauthenticate(final long generation) {
+		synchronized (sessionLock) {
+			if (sessionGeneration != generation)
+				return true;
+			if (!loggedIn || username == null)
+				return false;
+			if (System.nanoTime() - sessionStarted < TimeUnit.MILLISECONDS.toNanos(MIN_SESSION_AGE))
+				return false;
+			try {
+				authenticate(username, password);
+				return true;
+			} catch (final LoginException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether a call failed because the server could not read a
+	 * compressed request, so the request was not carried out.
+	 */
+	private static boolean isEncodingRejected(final XmlRpcException e) {
+		if (e instanceof XmlRpcHttpTransportException) {
+			final int status = ((XmlRpcHttpTransportException)e).getStatusCode();
+			return status == 400 || status == 411 || status == 415;
+		}
+		if (e.code == -32700)
+			return true;
+		final String msg = e.getMessage();
+		return msg != null && (msg.indexOf("Parse error") != -1 || msg.indexOf("not well formed") != -1);
+	}
+
+	/**
+	 * Returns whether a call failed because the session is no longer valid.
+	 * The server denies access both to an expired session, which it sees as
+	 * the anonymous user, and to a logged in user without permission, such
+	 * as for another user's job; only the first is an auth failure.
+	 */
+	private static boolean isAuthFailure(final XmlRpcException e) {
+		if (e instanceof XmlRpcHttpTransportException) {
+			final int status = ((XmlRpcHttpTransportException)e).getStatusCode();
+			return status == 401 || status == 403;
+		}
+		final String msg = e.getMessage();
+		if (msg != null && msg.indexOf("CSRF validation failed") != -1)
+			return true;
+		if (msg != null && msg.indexOf("Access denied") != -1)
+			return msg.indexOf("anonymous") != -1;
+		return e.code == 401 || e.code == 403;
+	}
+
+	/**
+	 * Logs out of the Boa API.  If a session store is set (see
+	 * {@link #setSessionStore(SessionStore)}), the session is instead kept
+	 * open and saved for the next process to reuse.
+	 *
+	 * @throws BoaException if the logout fails for any reason
+	 */
+	public void close() throws BoaException {
+		final OutputPrefetcher p = prefetcher;
+		if (p != null)
+			p.close();
+		synchronized (this) {
+			if (jobEvents != null) {
+				jobEvents.close();
+				jobEvents = null;
+			}
+			if (asyncExecutor != null) {
+				asyncExecutor.shutdownNow();
+				asyncExecutor = null;
+			}
+			if (ownDatasetRegistry != null)
+				ownDatasetRegistry.close();
+		}
+		try {
+			loggedIn = false;
+			if (sessionStore == null)
+				execute(METHOD_USER_LOGOUT, new Object[] {});
+		} catch (final XmlRpcException e) {
+			if (!"User is not logged in.".equals(e.getMessage()))
+				throw new BoaException(e.getMessage(), e);
+		} finally {
+			synchronized (sessionLock) {
+				username = null;
+				password = null;
+				setSession(null, null);
+			}
+		}
+	}
+
+	/**
+	 * Sets the local storage for job outputs.  When set, the output of each
+	 * finished job is kept in the store after it is first downloaded and
+	 * later requests for the whole output (see {@link JobHandle#getOutput(java.io.File)})
+	 * are served locally.  Outputs are keyed by job id and submission date, so
+	 * resubmitted jobs are downloaded again.
+	 *
+	 * @param store the store to use, or <code>null</code> to disable local storage
+	 */
+	public void setOutputStore(final ChunkStore store) {
+		this.outputStore = store;
+	}
+
+	/**
+	 * Returns the local storage for job outputs.
+	 *
+	 * @return the store used, or <code>null</code> if there is none
+	 */
+	public ChunkStore getOutputStore() {
+		return outputStore;
+	}
+
+	/**
+	 * Sets the prefetcher for job outputs.  The prefetcher is given every job
+	 * returned by this client.
+	 *
+	 * @param prefetcher the prefetcher to use, or <code>null</code> to disable prefetching
+	 */
+	public void setPrefetcher(final OutputPrefetcher prefetcher) {
+		this.prefetcher = prefetcher;
+	}
+
+	/**
+	 * Returns the prefetcher for job outputs.
+	 *
+	 * @return the prefetcher used, or <code>null</code> if there is none
+	 */
+	public OutputPrefetcher getPrefetcher() {
+		return prefetcher;
+	}
+
+	/**
+	 * Sets the scheduler that all output downloads go through.  By default,
+	 * each client has its own scheduler that allows 8 downloads at once (4
+	 * per host) with no bandwidth limit, or uses its runtime's scheduler.
+	 * A scheduler can be shared by several clients to enforce limits across
+	 * all of them.
+	 *
+	 * @param scheduler the scheduler to use
+	 */
+	public void setDownloadScheduler(final DownloadScheduler scheduler) {
+		if (scheduler == null)
+			throw new IllegalArgumentException("Argument 'scheduler' can not be null.");
+		this.downloadScheduler = scheduler;
+	}
+
+	/**
+	 * Returns the scheduler that all output downloads go through.
+	 *
+	 * @return the scheduler used
+	 */
+	public DownloadScheduler getDownloadScheduler() {
+		return downloadScheduler;
+	}
+
+	/**
+	 * Sets the cache used to reuse existing jobs when the same query is
+	 * submitted to the same dataset again.  While set, {@link #query(String, InputHandle)}
+	 * returns the existing job instead of submitting a new one.
+	 *
+	 * @param cache the cache to use, or <code>null</code> to always submit new jobs
+	 */
+	public void setQueryCache(final QueryCache cache) {
+		this.queryCache = cache;
+	}
+
+	/**
+	 * Returns the cache used to reuse existing jobs.
+	 *
+	 * @return the cache used, or <code>null</code> if there is none
+	 */
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Sets the limiter that all API calls go through.  By default, calls are
+	 * not limited.  A limiter can be shared by several clients to enforce
+	 * limits across all of them.
+	 *
+	 * @param limiter the limiter to use, or <code>null</code> to not limit calls
+	 */
+	public void setRequestLimiter(final RequestLimiter limiter) {
+		this.requestLimiter = limiter;
+	}
+
+	/**
+	 * Returns the limiter that all API calls go through.
+	 *
+	 * @return the limiter used, or <code>null</code> if there is none
+	 */
+	public RequestLimiter getRequestLimiter() {
+		return requestLimiter;
+	}
+
+	/**
+	 * Sets the policy for hedging and retrying read-only API calls (such as
+	 * reading jobs, their source or part of their output).  By default,
+	 * calls are neither hedged nor retried.  Calls that change state are
+	 * never hedged or retried.
+	 *
+	 * @param policy the policy to use, or <code>null</code> to disable hedging
+	 */
+	public void setHedgingPolicy(final HedgingPolicy policy) {
+		this.hedgingPolicy = policy;
+	}
+
+	/**
+	 * Returns the policy for hedging and retrying read-only API calls.
+	 *
+	 * @return the policy used, or <code>null</code> if there is none
+	 */
+	public HedgingPolicy getHedgingPolicy() {
+		return hedgingPolicy;
+	}
+
+	/**
+	 * Sets the store that sessions are saved in.  When set, {@link #login(String, String)}
+	 * reuses a session saved by an earlier process for the same user instead
+	 * of logging in, and saves each new session.  Must be set before logging
+	 * in.  While set, closing the client does not log the session out.
+	 *
+	 * @param store the store to use, or <code>null</code> to not save sessions
+	 */
+	public void setSessionStore(final SessionStore store) {
+		this.sessionStore = store;
+	}
+
+	/**
+	 * Returns the store that sessions are saved in.
+	 *
+	 * @return the store used, or <code>null</code> if there is none
+	 */
+	public SessionStore getSessionStore() {
+		return sessionStore;
+	}
+
+	/**
+	 * Returns the runtime this client shares resources with.
+	 *
+	 * @return the runtime, or <code>null</code> if the client has its own resources
+	 */
+	public BoaRuntime getRuntime() {
+		return runtime;
+	}
+
+	/**
+	 * Returns the client's share of its runtime's background threads, which
+	 * is only valid if the client has a runtime.  It must not be shut down.
+	 */
+	ScheduledExecutorService getRuntimeExecutor() {
+		return runtimeExecutor;
+	}
+
+	/**
+	 * Checks if the API is logged in and if not, throws an
+	 * exception.
+	 *
+	 * @throws NotLoggedInException if the API is not logged in
+	 */
+	protected void ensureLoggedIn() throws NotLoggedInException {
+		if (!loggedIn)
+			throw new NotLoggedInException();
+	}
+
+	/**
+	 * Resets the internal dataset cache.
+	 */
+	public void resetDatasetCache() {
+		datasetRegistry.reset();
+	}
+
+	/**
+	 * Sets the registry that keeps the list of input datasets.  By default,
+	 * each client has its own registry kept in memory.  A registry kept in a
+	 * file lets new processes find datasets without asking the server.
+	 *
+	 * @param registry the registry to use
+	 */
+	public void setDatasetRegistry(final DatasetRegistry registry) {
+		if (registry == null)
+			throw new IllegalArgumentException("Argument 'registry' can not be null.");
+		this.datasetRegistry = registry;
+	}
+
+	/**
+	 * Returns the registry that keeps the list of input datasets.
+	 *
+	 * @return the registry used
+	 */
+	public DatasetRegistry getDatasetRegistry() {
+		return datasetRegistry;
+	}
+
+	/**
+	 * Shares job polling and output downloads with the other processes on
+	 * this host that use the same coordination directory (and account).
+	 * Once set, job states are read from the shared table kept up to date by
+	 * the elected process, and outputs of finished jobs are downloaded once
+	 * into the shared directory.
+	 *
+	 * @param coordinator the coordinator to use, or <code>null</code> to call the server directly
+	 */
+	public void setHostCoordinator(final HostCoordinator coordinator) {
+		if (coordinator != null)
+			coordinator.start(this);
+		this.hostCoordinator = coordinator;
+	}
+
+	/**
+	 * Returns the host coordinator, if any.
+	 *
+	 * @return the coordinator, or <code>null</code> if there is none
+	 */
+	public HostCoordinator getHostCoordinator() {
+		return hostCoordinator;
+	}
+
+	/**
+	 * Records the client's traffic, or replays recorded traffic instead of
+	 * talking to the server (see {@link TrafficCapture}).  A client replaying
+	 * traffic should make the same calls as the recorded client, starting
+	 * with {@link #login(String, String)}.
+	 *
+	 * @param capture the capture to record to or replay from, or <code>null</code> to talk to the server normally
+	 */
+	public void setTrafficCapture(final TrafficCapture capture) {
+		this.trafficCapture = capture;
+	}
+
+	/**
+	 * Returns the traffic capture, if any.
+	 *
+	 * @return the capture, or <code>null</code> if there is none
+	 */
+	public TrafficCapture getTrafficCapture() {
+		return trafficCapture;
+	}
+
+	/**
+	 * Sets how long to wait for the server, for API calls and downloads.  By
+	 * default, connecting may take 30 seconds and the server may go 5 minutes
+	 * without sending data.
+	 *
+	 * @param connectTimeout how long to wait for a connection, in milliseconds (0 waits forever)
+	 * @param readTimeout how long to wait for more data, in milliseconds (0 waits forever)
+	 */
+	public void setTimeouts(final int connectTimeout, final int readTimeout) {
+		if (connectTimeout < 0 || readTimeout < 0)
+			throw new IllegalArgumentException("Timeouts must not be negative.");
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		final XmlRpcClientConfigImpl config = (XmlRpcClientConfigImpl)xmlRpcClient.getClientConfig();
+		config.setConnectionTimeout(connectTimeout);
+		config.setReplyTimeout(readTimeout);
+	}
+
+	/**
+	 * Returns how long to wait for a connection to the server.
+	 *
+	 * @return the connect timeout, in milliseconds
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Returns how long to wait for more data from the server.
+	 *
+	 * @return the read timeout, in milliseconds
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Sets whether API requests are sent gzip compressed, which mostly helps
+	 * with submitting large queries.  If the server turns out not to accept
+	 * compressed requests, the first one is sent again uncompressed and the
+	 * client stops compressing.  Responses are always asked for compressed,
+	 * and the server decides whether to compress them.
+	 *
+	 * @param enabled <code>true</code> to compress requests
+	 */
+	public void setRequestCompression(final boolean enabled) {
+		this.requestCompression = enabled;
+		((XmlRpcClientConfigImpl)xmlRpcClient.getClientConfig()).setGzipCompressing(enabled);
+	}
+
 	/**
-	 * Logs out of the Boa API.
+	 * Returns whether API requests are sent gzip compressed.
 	 *
-	 * @throws BoaException if the logout fails for any reason
+	 * @return <code>true</code> if requests are compressed (when the server accepts them)
 	 */
-	public void close() throws BoaException {
-		resetDatasetCache();
-		try {
-			loggedIn = false;
-			execute(METHOD_USER_LOGOUT, new Object[] {});
-		} catch (final XmlRpcException e) {
-			if (!"User is not logged in.".equals(e.getMessage()))
-				throw new BoaException(e.getMessage(), e);
-		}
+	public boolean getRequestCompression() {
+		return requestCompression && gzipRequests != GZIP_UNSUPPORTED;
 	}
 
 	/**
-	 * Checks if the API is logged in and if not, throws an
-	 * exception.
+	 * Sets how long each API call or download may take in total.  A call
+	 * still running after that has its connection closed and fails.  Calls
+	 * made inside a {@link Deadline} are also limited by it.
 	 *
-	 * @throws NotLoggedInException if the API is not logged in
+	 * @param timeout the time limit for each call, in milliseconds, or 0 for none
 	 */
-	protected void ensureLoggedIn() throws NotLoggedInException {
-		if (!loggedIn)
-			throw new NotLoggedInException();
+	public void setCallTimeout(final long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Argument 'timeout' must not be negative.");
+		this.callTimeout = timeout;
 	}
 
-	protected List<InputHandle> datasetCache = null;
-	protected long datasetCacheTime = 0;
+	/**
+	 * Returns how long each API call or download may take in total.
+	 *
+	 * @return the time limit for each call, in milliseconds, or 0 for none
+	 */
+	public long getCallTimeout() {
+		return callTimeout;
+	}
 
 	/**
-	 * Resets the internal dataset cache.
+	 * Sets how many calls the bulk job operations, such as
+	 * {@link #deleteJobs(Predicate)}, make at once.  Each bulk operation
+	 * makes its calls on its own threads.
+	 *
+	 * @param parallelism the most calls in progress at once, 8 by default
 	 */
-	public void resetDatasetCache() {
-		datasetCache = null;
-		datasetCacheTime = 0;
+	public void setBulkParallelism(final int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Argument 'parallelism' must be positive.");
+		this.bulkParallelism = parallelism;
+	}
+
+	/**
+	 * Returns how many calls the bulk job operations make at once.
+	 *
+	 * @return the most calls in progress at once
+	 */
+	public int getBulkParallelism() {
+		return bulkParallelism;
 	}
 
 	/**
@@ -289,25 +1128,7 @@ public class BoaClient implements AutoCloseable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public List<InputHandle> getDatasets() throws BoaException, NotLoggedInException {
-		// cache results for 1 day
-		if (datasetCache != null && datasetCacheTime + 86400000 > System.currentTimeMillis())
-			return datasetCache;
-
-		ensureLoggedIn();
-
-		try {
-			final Object[] result = (Object[])execute(METHOD_BOA_DATASETS, new Object[] {});
-
-			datasetCache = new ArrayList<InputHandle>();
-			for (int i = 0; i < result.length; i++)
-				datasetCache.add(Util.parseDataset((Map<?, ?>)result[i]));
-
-			datasetCacheTime = System.currentTimeMillis();
-
-			return datasetCache;
-		} catch (final XmlRpcException e) {
-			throw new BoaException(e.getMessage(), e);
-		}
+		return datasetRegistry.getDatasets(datasetLoader);
 	}
 
 	/**
@@ -339,13 +1160,41 @@ public class BoaClient implements AutoCloseable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public InputHandle getDataset(final String name) throws BoaException, NotLoggedInException {
-		for (final InputHandle h : getDatasets())
-			if (h.getName().equals(name))
-				return h;
+		return datasetRegistry.getByName(datasetLoader, name);
+	}
 
-		return null;
+	/**
+	 * Given the id of an input dataset, returns a handle (if one exists, otherwise <code>null</code>).
+	 * Since datasets rarely change, the results may be up to 1 day old.  The cache can be reset
+	 * (see {@link #resetDatasetCache()}).
+	 *
+	 * @param id the id of the input dataset to return a handle for
+	 * @return an {@link InputHandle} for the specified dataset id
+	 * @throws BoaException if there was a problem reading from the server
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public InputHandle getDataset(final int id) throws BoaException, NotLoggedInException {
+		return datasetRegistry.getById(datasetLoader, id);
 	}
 
+	private final DatasetRegistry.Loader datasetLoader = new DatasetRegistry.Loader() {
+		@Override
+		public List<InputHandle> load() throws BoaException {
+			ensureLoggedIn();
+
+			try {
+				final Object[] result = (Object[])execute(METHOD_BOA_DATASETS, new Object[] {});
+
+				final List<InputHandle> datasets = new ArrayList<InputHandle>();
+				for (int i = 0; i < result.length; i++)
+					datasets.add(Util.parseDataset((Map<?, ?>)result[i]));
+				return datasets;
+			} catch (final XmlRpcException e) {
+				throw new BoaException(e.getMessage(), e);
+			}
+		}
+	};
+
 	/**
 	 * Returns a specific job.
 	 *
@@ -357,8 +1206,26 @@ public class BoaClient implements AutoCloseable {
 	public JobHandle getJob(final int id) throws BoaException, NotLoggedInException {
 		ensureLoggedIn();
 
+		final HostCoordinator coordinator = hostCoordinator;
+		if (coordinator != null) {
+			final Map<Integer, JobHandle> found = new HashMap<Integer, JobHandle>();
+			final Set<Integer> deleted = new HashSet<Integer>();
+			if (coordinator.lookup(Collections.singleton(id), found, deleted).isEmpty()) {
+				if (!deleted.isEmpty())
+					throw new BoaException("Job " + id + " does not exist.");
+				return track(found.get(id));
+			}
+			final JobHandle job = fetchJob(id);
+			coordinator.record(Collections.singleton(job));
+			return job;
+		}
+
+		return fetchJob(id);
+	}
+
+	private JobHandle fetchJob(final int id) throws BoaException, NotLoggedInException {
 		try {
-			return Util.parseJob(this, (Map<?, ?>)execute(Map.class, METHOD_BOA_JOB, new Object[] {id}));
+			return track(Util.parseJob(this, (Map<?, ?>)execute(Map.class, METHOD_BOA_JOB, new Object[] {id})));
 		} catch (final XmlRpcException e) {
 			throw new BoaException(e.getMessage(), e);
 		}
@@ -424,7 +1291,7 @@ public class BoaClient implements AutoCloseable {
 
 			final List<JobHandle> jobs = new ArrayList<JobHandle>();
 			for (int i = 0; i < result.length; i++)
-				jobs.add(Util.parseJob(this, (Map<?, ?>)result[i]));
+				jobs.add(track(Util.parseJob(this, (Map<?, ?>)result[i])));
 
 			return jobs;
 		} catch (final XmlRpcException e) {
@@ -450,7 +1317,7 @@ public class BoaClient implements AutoCloseable {
 
 			final List<JobHandle> jobs = new ArrayList<JobHandle>();
 			for (int i = 0; i < result.length; i++)
-				jobs.add(Util.parseJob(this, (Map<?, ?>)result[i]));
+				jobs.add(track(Util.parseJob(this, (Map<?, ?>)result[i])));
 
 			return jobs;
 		} catch (final XmlRpcException e) {
@@ -499,13 +1366,49 @@ public class BoaClient implements AutoCloseable {
 	public JobHandle query(final String query, final InputHandle dataset) throws BoaException, NotLoggedInException{
 		ensureLoggedIn();
 
+		final QueryCache cache = queryCache;
+		if (cache != null) {
+			final JobHandle job = cache.find(this, query, dataset);
+			if (job != null)
+				return job;
+		}
+
 		try {
-			return Util.parseJob(this, (Map<?, ?>)execute(Map.class, METHOD_BOA_SUBMIT, new Object[] { query, dataset.getId() }));
+			final JobHandle job = track(Util.parseJob(this, (Map<?, ?>)execute(Map.class, METHOD_BOA_SUBMIT, new Object[] { query, dataset.getId() })));
+			if (cache != null)
+				try {
+					cache.put(query, dataset, job.getId());
+				} catch (final BoaException e) {
+					// the job exists, and failing here would only make callers submit it again
+				}
+			return job;
 		} catch (final XmlRpcException e) {
 			throw new BoaException(e.getMessage(), e);
 		}
 	}
 
+	/**
+	 * Submits a new query in the background, and follows the job until it is
+	 * done.  Cancelling the returned future closes the connection of any call
+	 * in progress, and can also stop the job on the server.
+	 *
+	 * @param query the query source code
+	 * @param dataset the input dataset to query
+	 * @param stopOnCancel whether cancelling the future also stops the job
+	 * @return a future for the job, completed once it finished or failed
+	 */
+	public CompletableFuture<JobHandle> queryAsync(final String query, final InputHandle dataset, final boolean stopOnCancel) {
+		return new AsyncJob(this, asyncExecutor(), stopOnCancel).start(query, dataset);
+	}
+
+	private synchronized ScheduledExecutorService asyncExecutor() {
+		if (runtime != null)
+			return runtimeExecutor;
+		if (asyncExecutor == null)
+			asyncExecutor = Executors.newScheduledThreadPool(2, OutputPrefetcher.daemonThreads("boa-async"));
+		return asyncExecutor;
+	}
+
 	/**
 	 * Submits a new query to Boa to query the latest (testing) dataset and returns a handle to the new job.
 	 *
@@ -517,10 +1420,222 @@ public class BoaClient implements AutoCloseable {
 	public JobHandle query(final String query) throws BoaException, NotLoggedInException{
 		ensureLoggedIn();
 
+		return query(query, getDatasets().get(0));
+	}
+
+	/**
+	 * Submits a new query to Boa to query every dataset matching a filter, and
+	 * returns a handle to the group of new jobs.  The jobs are submitted
+	 * concurrently, and the group hands out each job as it finishes.  The
+	 * unfinished jobs are checked every 5 seconds.
+	 *
+	 * @param query the query source code
+	 * @param filter selects the input datasets to query
+	 * @return a {@link JobGroup} for the new jobs
+	 * @throws BoaException if there was a problem reading from the server
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public JobGroup queryAll(final String query, final Predicate<InputHandle> filter) throws BoaException, NotLoggedInException {
+		return queryAll(query, filter, JOB_GROUP_POLL_INTERVAL);
+	}
+
+	/**
+	 * Submits a new query to Boa to query every dataset matching a filter, and
+	 * returns a handle to the group of new jobs.  The jobs are submitted
+	 * concurrently, and the group hands out each job as it finishes.
+	 *
+	 * @param query the query source code
+	 * @param filter selects the input datasets to query
+	 * @param pollInterval how often the unfinished jobs are checked, in milliseconds
+	 * @return a {@link JobGroup} for the new jobs
+	 * @throws BoaException if there was a problem reading from the server
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public JobGroup queryAll(final String query, final Predicate<InputHandle> filter, final long pollInterval) throws BoaException, NotLoggedInException {
+		if (pollInterval <= 0)
+			throw new IllegalArgumentException("Argument 'pollInterval' must be positive.");
+
+		ensureLoggedIn();
+
+		final List<InputHandle> datasets = new ArrayList<InputHandle>();
+		for (final InputHandle dataset : getDatasets())
+			if (filter.test(dataset))
+				datasets.add(dataset);
+		return new JobGroup(this, query, datasets, pollInterval);
+	}
+
+	/**
+	 * Returns a feed of changes to the state of the user's jobs, such as jobs
+	 * being submitted, compiled, run, finished or failing.  One feed is shared
+	 * by all its subscribers, and it polls the user's most recent jobs (a
+	 * single request per poll) only while anyone is subscribed.
+	 *
+	 * @return the job event feed
+	 */
+	public synchronized JobEventPublisher jobEvents() {
+		if (jobEvents == null)
+			jobEvents = new JobEventPublisher(this, JOB_EVENTS_POLL_INTERVAL, JOB_EVENTS_WINDOW);
+		return jobEvents;
+	}
+
+	/**
+	 * Deletes every one of the user's jobs matching a filter.  The job list is
+	 * read a page at a time, and the jobs are deleted several at once.
+	 *
+	 * @param filter selects the jobs to delete
+	 * @return which jobs were deleted, and which failed
+	 * @throws BoaException if there was a problem reading the job list from the server
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public BulkResult deleteJobs(final Predicate<JobHandle> filter) throws BoaException, NotLoggedInException {
+		return deleteJobs(filter, null);
+	}
+
+	/**
+	 * Deletes every one of the user's jobs matching a filter, reporting each
+	 * job to a listener as it is done.
+	 *
+	 * @param filter selects the jobs to delete
+	 * @param listener receives each deleted or failed job, or <code>null</code>
+	 * @return which jobs were deleted, and which failed
+	 * @throws BoaException if there was a problem reading the job list from the server
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public BulkResult deleteJobs(final Predicate<JobHandle> filter, final BulkResult.Listener listener) throws BoaException, NotLoggedInException {
+		ensureLoggedIn();
+
+		return new BulkOperation(bulkParallelism, new BulkOperation.Action() {
+			@Override
+			public void apply(final int id) throws BoaException {
+				delete(id);
+			}
+		}, listener).run(this, filter, true);
+	}
+
+	/**
+	 * Stops every one of the user's running or waiting jobs matching a filter.
+	 * The job list is read a page at a time, and the jobs are stopped several
+	 * at once.
+	 *
+	 * @param filter selects the jobs to stop
+	 * @return which jobs were stopped, and which failed
+	 * @throws BoaException if there was a problem reading the job list from the server
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public BulkResult stopJobs(final Predicate<JobHandle> filter) throws BoaException, NotLoggedInException {
+		return stopJobs(filter, null);
+	}
+
+	/**
+	 * Stops every one of the user's running or waiting jobs matching a filter,
+	 * reporting each job to a listener as it is done.
+	 *
+	 * @param filter selects the jobs to stop
+	 * @param listener receives each stopped or failed job, or <code>null</code>
+	 * @return which jobs were stopped, and which failed
+	 * @throws BoaException if there was a problem reading the job list from the server
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public BulkResult stopJobs(final Predicate<JobHandle> filter, final BulkResult.Listener listener) throws BoaException, NotLoggedInException {
+		ensureLoggedIn();
+
+		return new BulkOperation(bulkParallelism, new BulkOperation.Action() {
+			@Override
+			public void apply(final int id) throws BoaException {
+				stop(id);
+			}
+		}, listener).run(this, new Predicate<JobHandle>() {
+			@Override
+			public boolean test(final JobHandle job) {
+				return job.getCompilerStatus() != CompileStatus.ERROR
+					&& (job.getExecutionStatus() == ExecutionStatus.WAITING || job.getExecutionStatus() == ExecutionStatus.RUNNING)
+					&& filter.test(job);
+			}
+		}, false);
+	}
+
+	/**
+	 * Makes several jobs public or private at once.
+	 *
+	 * @param ids the ids of the jobs
+	 * @param isPublic whether the jobs should be public
+	 * @return which jobs were changed, and which failed
+	 * @throws BoaException if there was a problem reading from the server
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public BulkResult setPublic(final Collection<Integer> ids, final boolean isPublic) throws BoaException, NotLoggedInException {
+		return setPublic(ids, isPublic, null);
+	}
+
+	/**
+	 * Makes several jobs public or private at once, reporting each job to a
+	 * listener as it is done.
+	 *
+	 * @param ids the ids of the jobs
+	 * @param isPublic whether the jobs should be public
+	 * @param listener receives each changed or failed job, or <code>null</code>
+	 * @return which jobs were changed, and which failed
+	 * @throws BoaException if there was a problem reading from the server
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public BulkResult setPublic(final Collection<Integer> ids, final boolean isPublic, final BulkResult.Listener listener) throws BoaException, NotLoggedInException {
+		ensureLoggedIn();
+
+		return new BulkOperation(bulkParallelism, new BulkOperation.Action() {
+			@Override
+			public void apply(final int id) throws BoaException {
+				setPublic(id, isPublic);
+			}
+		}, listener).run(new LinkedHashSet<Integer>(ids));
+	}
+
+	/**
+	 * Streams over the differences between the outputs of two jobs, in key order.
+	 * Both outputs are downloaded into temporary files, which are deleted when
+	 * the returned iterator is closed.  See {@link JobOutput#diff(JobOutput, JobOutput, long, java.io.File)}.
+	 *
+	 * @param oldJob the job with the old output
+	 * @param newJob the job with the new output
+	 * @return a {@link CloseableIterator} over the differences
+	 * @throws BoaException if there was a problem reading from the server
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public CloseableIterator<OutputDiff> diff(final JobHandle oldJob, final JobHandle newJob) throws BoaException, NotLoggedInException {
+		File oldFile = null;
+		File newFile = null;
 		try {
-			return Util.parseJob(this, (Map<?, ?>)execute(Map.class, METHOD_BOA_SUBMIT, new Object[] { query, getDatasets().get(0).getId() }));
-		} catch (final XmlRpcException e) {
+			oldFile = File.createTempFile("boa-diff", ".txt");
+			newFile = File.createTempFile("boa-diff", ".txt");
+			oldJob.getOutput(oldFile);
+			newJob.getOutput(newFile);
+
+			final File f1 = oldFile;
+			final File f2 = newFile;
+			final CloseableIterator<OutputDiff> it = JobOutput.diff(new JobOutput(oldFile), new JobOutput(newFile));
+			return new CloseableIterator<OutputDiff>() {
+				@Override
+				public boolean hasNext() { return it.hasNext(); }
+				@Override
+				public OutputDiff next() { return it.next(); }
+				@Override
+				public void close() {
+					it.close();
+					f1.delete();
+					f2.delete();
+				}
+			};
+		} catch (final IOException e) {
+			if (oldFile != null)
+				oldFile.delete();
+			if (newFile != null)
+				newFile.delete();
 			throw new BoaException(e.getMessage(), e);
+		} catch (final BoaException e) {
+			if (oldFile != null)
+				oldFile.delete();
+			if (newFile != null)
+				newFile.delete();
+			throw e;
 		}
 	}
 
@@ -529,6 +1644,64 @@ public class BoaClient implements AutoCloseable {
 	// but rather through a handle                                      //
 	//////////////////////////////////////////////////////////////////////
 
+	private JobHandle track(final JobHandle job) {
+		final OutputPrefetcher p = prefetcher;
+		if (p != null)
+			p.offer(job);
+		return job;
+	}
+
+	/**
+	 * Returns the current state of several jobs at once.  Recent jobs are read
+	 * a page at a time from the job list, and only jobs not found there are
+	 * requested one by one.  Jobs that no longer exist are left out.
+	 */
+	Map<Integer, JobHandle> pollJobs(final Collection<Integer> ids) throws BoaException, NotLoggedInException {
+		final HostCoordinator coordinator = hostCoordinator;
+		if (coordinator == null)
+			return fetchJobs(ids);
+
+		final Map<Integer, JobHandle> found = new HashMap<Integer, JobHandle>();
+		final Set<Integer> missing = coordinator.lookup(ids, found, new HashSet<Integer>());
+		if (!missing.isEmpty()) {
+			final Map<Integer, JobHandle> fetched = fetchJobs(missing);
+			coordinator.record(fetched.values());
+			found.putAll(fetched);
+		}
+		return found;
+	}
+
+	/**
+	 * Reads the current state of several jobs from the server (see
+	 * {@link #pollJobs(Collection)}).
+	 */
+	Map<Integer, JobHandle> fetchJobs(final Collection<Integer> ids) throws BoaException, NotLoggedInException {
+		final Map<Integer, JobHandle> found = new HashMap<Integer, JobHandle>();
+		final Set<Integer> missing = new HashSet<Integer>(ids);
+		final int pageSize = Math.max(20, Math.min(2 * missing.size(), 500));
+
+		for (int page = 0; page < MAX_POLL_PAGES && !missing.isEmpty(); page++) {
+			final List<JobHandle> jobs = getJobList(page * pageSize, pageSize);
+			for (final JobHandle j : jobs)
+				if (missing.remove(j.getId()))
+					found.put(j.getId(), j);
+			if (jobs.size() < pageSize)
+				break;
+		}
+
+		for (final int id : missing) {
+			try {
+				found.put(id, fetchJob(id));
+			} catch (final NotLoggedInException e) {
+				throw e;
+			} catch (final BoaException e) {
+				// the job was deleted
+			}
+		}
+
+		return found;
+	}
+
 	void stop(final long id) throws BoaException, NotLoggedInException {
 		ensureLoggedIn();
 
@@ -537,6 +1710,10 @@ public class BoaClient implements AutoCloseable {
 		} catch (final XmlRpcException e) {
 			throw new BoaException(e.getMessage(), e);
 		}
+
+		final HostCoordinator coordinator = hostCoordinator;
+		if (coordinator != null)
+			coordinator.invalidate((int)id);
 	}
 
 	void resubmit(final long id) throws BoaException, NotLoggedInException {
@@ -547,6 +1724,10 @@ public class BoaClient implements AutoCloseable {
 		} catch (final XmlRpcException e) {
 			throw new BoaException(e.getMessage(), e);
 		}
+
+		final HostCoordinator coordinator = hostCoordinator;
+		if (coordinator != null)
+			coordinator.invalidate((int)id);
 	}
 
 	void delete(final long id) throws BoaException, NotLoggedInException {
@@ -557,6 +1738,10 @@ public class BoaClient implements AutoCloseable {
 		} catch (final XmlRpcException e) {
 			throw new BoaException(e.getMessage(), e);
 		}
+
+		final HostCoordinator coordinator = hostCoordinator;
+		if (coordinator != null)
+			coordinator.invalidate((int)id);
 	}
 
 	void setPublic(final long id, final boolean isPublic) throws BoaException, NotLoggedInException {
@@ -627,47 +1812,65 @@ public class BoaClient implements AutoCloseable {
 		}
 	}
 
+	/**
+	 * Returns the key a job's output is kept under.  The job's date tells a
+	 * resubmitted job's output from the old one, so a handle without a date
+	 * (such as one decoded from {@link JobHandle#fromBytes(byte[], BoaClient)}) should
+	 * be read from the server again first.
+	 */
+	static String outputKey(final JobHandle job) {
+		if (job.getDate() == null)
+			return Integer.toString(job.getId());
+		return job.getId() + "-" + job.getDate().getTime();
+	}
+
+	void getOutput(final JobHandle job, final File f) throws BoaException, NotLoggedInException {
+		getOutput(job, f, DownloadScheduler.Priority.INTERACTIVE);
+	}
+
+	void getOutput(final JobHandle handle, final File f, final DownloadScheduler.Priority priority) throws BoaException, NotLoggedInException {
+		final HostCoordinator coordinator = hostCoordinator;
+		final ChunkStore store = outputStore;
+		// shared and stored outputs are keyed by the job's date
+		final JobHandle job = handle.getDate() == null && (coordinator != null || store != null) ? getJob(handle.getId()) : handle;
+
+		if (coordinator != null && job.getExecutionStatus() == ExecutionStatus.FINISHED) {
+			ensureLoggedIn();
+			coordinator.getOutput(job, f, priority);
+			return;
+		}
+
+		if (store == null) {
+			getOutput(job.getId(), f, priority, null);
+			return;
+		}
+
+		final String key = outputKey(job);
+		if (store.get(key, f))
+			return;
+
+		getOutput(job.getId(), f, priority, null);
+		if (job.getExecutionStatus() == ExecutionStatus.FINISHED)
+			store.put(key, f);
+	}
+
 	void getOutput(final long id, final File f) throws BoaException, NotLoggedInException {
+		getOutput(id, f, DownloadScheduler.Priority.INTERACTIVE, null);
+	}
+
+	void getOutput(final long id, final File f, final DownloadScheduler.Priority priority, final TokenBucket throttle) throws BoaException, NotLoggedInException {
 		ensureLoggedIn();
 
 		try {
 			final String url = (String)execute(String.class, METHOD_JOB_OUTPUT, new Object[] { "" + id });
 
-			InputStream inStr = null;
 			BufferedWriter writer = null;
 			try {
-				final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-				HttpURLConnection.setFollowRedirects(true);
-				conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
-				conn.connect();
-
-				inStr = conn.getInputStream();
-				final String encoding = conn.getContentEncoding();
-				if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
-					inStr = new GZIPInputStream(inStr);
-				} else if (encoding != null && encoding.equalsIgnoreCase("deflate")) {
-					inStr = new InflaterInputStream(inStr, new Inflater(true));
-				}
-
-				final BufferedReader br = new BufferedReader(new InputStreamReader(inStr));
-				writer = new BufferedWriter(new FileWriter(f));
-
-				char[] buf = new char[4096];
-				int cnt;
-				while ((cnt = br.read(buf, 0, 4096)) > 0) {
-					writer.write(buf, 0, cnt);
-				}
-			} catch (final MalformedURLException e) {
-				throw new BoaException(url, e);
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8));
+				download(url, null, priority, throttle, writer);
 			} catch (final IOException e) {
 				throw new BoaException(e.getMessage(), e);
 			} finally {
-				try {
-					if (inStr != null)
-						inStr.close();
-				} catch (final IOException e) {
-					// ignore
-				}
 				try {
 					if (writer != null)
 						writer.close();
@@ -683,55 +1886,182 @@ public class BoaClient implements AutoCloseable {
 	String getOutput(final long id, final long start, final long len) throws BoaException, NotLoggedInException {
 		ensureLoggedIn();
 
-		final StringBuffer sb = new StringBuffer();
-
 		try {
 			final String url = (String)execute(String.class, METHOD_JOB_OUTPUT, new Object[] { "" + id });
 
-			InputStream inStr = null;
-			try {
-				final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-				HttpURLConnection.setFollowRedirects(true);
-				// FIXME investigate why enabling zip encoding breaks Range requests
-				//conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
-				if (len < 1)
-					conn.setRequestProperty("Range", "bytes=" + start + "-");
-				else
-					conn.setRequestProperty("Range", "bytes=" + start + "-" + (start + len - 1));
-				conn.connect();
-
-				inStr = conn.getInputStream();
-				final String encoding = conn.getContentEncoding();
-				if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
-					inStr = new GZIPInputStream(inStr);
-				} else if (encoding != null && encoding.equalsIgnoreCase("deflate")) {
-					inStr = new InflaterInputStream(inStr, new Inflater(true));
+			final String range = len < 1 ? "bytes=" + start + "-" : "bytes=" + start + "-" + (start + len - 1);
+			final Deadline deadline = Deadline.current();
+			final Callable<String> call = new Callable<String>() {
+				@Override
+				public String call() throws BoaException {
+					final Deadline previous = Deadline.enter(deadline);
+					try {
+						final StringWriter sw = new StringWriter();
+						download(url, range, DownloadScheduler.Priority.INTERACTIVE, null, sw);
+						return sw.toString();
+					} finally {
+						Deadline.exit(previous);
+					}
 				}
+			};
+
+			final HedgingPolicy hedging = hedgingPolicy;
+			if (hedging == null)
+				return call.call();
+			return hedging.execute(METHOD_JOB_PAGED_OUTPUT, call);
+		} catch (final BoaException e) {
+			throw e;
+		} catch (final Exception e) {
+			if (e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
 
-				final BufferedReader br = new BufferedReader(new InputStreamReader(inStr));
+	/**
+	 * Sets a new connection's timeouts, and ties it to the current deadline
+	 * (if any) so it is closed when the deadline passes.
+	 */
+	private void prepare(final URLConnection conn) throws IOException {
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+		final Deadline deadline = Deadline.current();
+		if (deadline != null)
+			deadline.register(conn);
+	}
 
-				char[] buf = new char[4096];
-				int cnt;
-				while ((cnt = br.read(buf, 0, 4096)) > 0) {
-					sb.append(buf, 0, cnt);
+	/**
+	 * Downloads (part of) an output through the download scheduler.
+	 *
+	 * @param url the output's URL
+	 * @param range the HTTP byte range to request, or <code>null</code> for the whole output
+	 * @param priority the download's priority
+	 * @param throttle an extra bandwidth budget for this download, or <code>null</code>
+	 * @param out where to write the output
+	 */
+	private void download(final String url, final String range, final DownloadScheduler.Priority priority, final TokenBucket throttle, final Writer out) throws BoaException {
+		final DownloadScheduler scheduler = downloadScheduler;
+		final long timeout = callTimeout;
+		final Deadline deadline = timeout > 0 ? Deadline.after(timeout, TimeUnit.MILLISECONDS) : Deadline.current();
+		DownloadScheduler.Ticket ticket = null;
+		HttpURLConnection conn = null;
+		InputStream inStr = null;
+		try {
+			final URL u = new URL(url);
+			ticket = scheduler.acquire(u.getHost(), priority);
+
+			final TrafficCapture capture = trafficCapture;
+			final String key = range == null ? url : url + " " + range;
+			if (capture != null && capture.isReplaying()) {
+				final TrafficCapture.Exchange replayed = capture.replay(TrafficCapture.DOWNLOAD, key);
+				inStr = decode(new MeteredInputStream(replayed.open(), scheduler, ticket, throttle), replayed.encoding);
+			} else {
+				final long start = System.nanoTime();
+				conn = (HttpURLConnection) u.openConnection();
+				prepare(conn);
+				HttpURLConnection.setFollowRedirects(true);
+				if (range == null) {
+					conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+				} else {
+					// FIXME investigate why enabling zip encoding breaks Range requests
+					//conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+					conn.setRequestProperty("Range", range);
 				}
+				conn.connect();
+
+				// bandwidth is counted in bytes on the wire, before decompressing
+				inStr = new MeteredInputStream(conn.getInputStream(), scheduler, ticket, throttle);
+				inStr = decode(inStr, conn.getContentEncoding());
+				// recorded decoded, since a decoder stops at the end of its data without reading the raw stream to its end
+				if (capture != null)
+					inStr = capture.recording(key, start, inStr);
+			}
+
+			final BufferedReader br = new BufferedReader(new InputStreamReader(inStr, StandardCharsets.UTF_8));
 
-				return sb.toString();
-			} catch (final MalformedURLException e) {
-				throw new BoaException(url, e);
+			char[] buf = new char[4096];
+			int cnt;
+			while ((cnt = br.read(buf, 0, 4096)) > 0)
+				out.write(buf, 0, cnt);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BoaException("Interrupted while downloading output.", e);
+		} catch (final MalformedURLException e) {
+			throw new BoaException(url, e);
+		} catch (final IOException e) {
+			final String why = deadline == null ? null : deadline.failure();
+			throw new BoaException(why != null ? why : e.getMessage(), e);
+		} finally {
+			try {
+				if (inStr != null)
+					inStr.close();
 			} catch (final IOException e) {
-				throw new BoaException(e.getMessage(), e);
-			} finally {
-				try {
-					if (inStr != null)
-						inStr.close();
-				} catch (final IOException e) {
-					// ignore
-				}
+				// ignore
 			}
-		} catch (final XmlRpcException e) {
-			throw new BoaException(e.getMessage(), e);
+			if (ticket != null)
+				scheduler.release(ticket);
+			if (deadline != null) {
+				if (conn != null)
+					deadline.unregister(conn);
+				if (timeout > 0)
+					deadline.close();
+			}
+		}
+	}
+
+	/**
+	 * Wraps a download in a decoder for its content encoding, if any.
+	 */
+	/**
+	 * Reports the bytes read from a download to the download scheduler, and
+	 * waits for the download's own bandwidth budget, if any.
+	 */
+	private static final class MeteredInputStream extends FilterInputStream {
+		private final DownloadScheduler scheduler;
+		private final DownloadScheduler.Ticket ticket;
+		private final TokenBucket throttle;
+
+		MeteredInputStream(final InputStream in, final DownloadScheduler scheduler, final DownloadScheduler.Ticket ticket, final TokenBucket throttle) {
+			super(in);
+			this.scheduler = scheduler;
+			this.ticket = ticket;
+			this.throttle = throttle;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = in.read();
+			if (b != -1)
+				meter(1);
+			return b;
 		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int cnt = in.read(b, off, len);
+			if (cnt > 0)
+				meter(cnt);
+			return cnt;
+		}
+
+		private void meter(final int bytes) throws InterruptedIOException {
+			try {
+				scheduler.transferred(ticket, bytes);
+				if (throttle != null)
+					throttle.acquire(bytes);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while downloading output.");
+			}
+		}
+	}
+
+	private static InputStream decode(final InputStream in, final String encoding) throws IOException {
+		if (encoding != null && encoding.equalsIgnoreCase("gzip"))
+			return new GZIPInputStream(in);
+		if (encoding != null && encoding.equalsIgnoreCase("deflate"))
+			return new InflaterInputStream(in, new Inflater(true));
+		return in;
 	}
 
 	int getOutputSize(final long id) throws BoaException, NotLoggedInException {
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads API calls over several Boa endpoints, such as mirrored
+ * deployments, each with its own logged in client.
+ *
+ * <p>
+ * Each call goes to the healthy endpoint with the fewest calls in progress.
+ * An endpoint that can not be reached is marked down and checked in the
+ * background until it answers again, and read-only calls that failed on it
+ * are tried on another endpoint.  A job belongs to the endpoint it was
+ * submitted to, and calls on its {@link JobHandle} always go there.
+ * </p>
+ *
+ * <p>
+ * Example usage:
+ * </p>
+ *
+ * <pre>
+ * try (final BoaClientPool pool = new BoaClientPool()) {
+ *   pool.add(new BoaClient("boa1.example.org", "/boa/?q=boa/api"));
+ *   pool.add(new BoaClient("boa2.example.org", "/boa/?q=boa/api"));
+ *   pool.login("user", "pass");
+ *
+ *   final JobHandle job = pool.query("...", "2019 October/GitHub");
+ * }
+ * </pre>
+ *
+ * @author rdyer
+ */
+public final class BoaClientPool implements AutoCloseable {
+	private static final long HEALTH_CHECK_INTERVAL = 30000;
+
+	/**
+	 * A call made with one of the pool's clients.
+	 */
+	public interface Call<T> {
+		/**
+		 * Makes the call.
+		 *
+		 * @param client the client to make the call with
+		 * @return the call's result
+		 * @throws BoaException if the call failed
+		 */
+		T call(BoaClient client) throws BoaException;
+	}
+
+	/**
+	 * One endpoint in the pool.
+	 */
+	private static final class Member {
+		final BoaClient client;
+		final AtomicInteger outstanding = new AtomicInteger();
+		volatile boolean healthy = true;
+
+		Member(final BoaClient client) {
+			this.client = client;
+		}
+	}
+
+	private final List<Member> members = new CopyOnWriteArrayList<Member>();
+	private final AtomicInteger next = new AtomicInteger();
+	/** the username and password, kept so endpoints that could not be logged into can be tried again */
+	private volatile String[] credentials = null;
+	private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(OutputPrefetcher.daemonThreads("boa-pool-health"));
+
+	/**
+	 * Creates an empty pool.
+	 */
+	public BoaClientPool() {
+		checker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkHealth();
+			}
+		}, HEALTH_CHECK_INTERVAL, HEALTH_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a client for another endpoint to the pool.
+	 *
+	 * @param client the client to add
+	 */
+	public void add(final BoaClient client) {
+		members.add(new Member(client));
+	}
+
+	/**
+	 * Returns the clients in the pool.
+	 *
+	 * @return the clients
+	 */
+	public List<BoaClient> getClients() {
+		final List<BoaClient> clients = new ArrayList<BoaClient>();
+		for (final Member m : members)
+			clients.add(m.client);
+		return clients;
+	}
+
+	/**
+	 * Returns how many endpoints are currently healthy.
+	 *
+	 * @return the number of healthy endpoints
+	 */
+	public int getHealthyCount() {
+		int count = 0;
+		for (final Member m : members)
+			if (m.healthy)
+				count++;
+		return count;
+	}
+
+	/**
+	 * Logs every client into its endpoint.  Endpoints that can not be logged
+	 * into are marked down, and logging into them is tried again by the
+	 * background checks.
+	 *
+	 * @param username the Boa username to use to log in
+	 * @param password the password for the user
+	 * @throws LoginException if no endpoint could be logged into
+	 */
+	public void login(final String username, final String password) throws LoginException {
+		this.credentials = new String[] { username, password };
+
+		LoginException failure = null;
+		boolean any = false;
+
+		for (final Member m : members) {
+			try {
+				m.client.login(username, password);
+				m.healthy = true;
+				any = true;
+			} catch (final LoginException e) {
+				m.healthy = false;
+				failure = e;
+			}
+		}
+
+		if (!any)
+			throw failure != null ? failure : new LoginException("No endpoints in the pool.", null);
+	}
+
+	/**
+	 * Makes a read-only call on the least busy healthy endpoint.  If the
+	 * endpoint can not be reached, it is marked down and the call is tried
+	 * on another endpoint.
+	 *
+	 * @param call the call to make
+	 * @return the call's result
+	 * @throws BoaException if the call failed on every endpoint tried
+	 */
+	public <T> T read(final Call<T> call) throws BoaException {
+		final Set<Member> tried = new HashSet<Member>();
+		BoaException failure = null;
+
+		for (Member m = pick(tried); m != null; m = pick(tried)) {
+			tried.add(m);
+			m.outstanding.incrementAndGet();
+			try {
+				return call.call(m.client);
+			} catch (final BoaException e) {
+				if (!isEndpointFailure(e))
+					throw e;
+				m.healthy = false;
+				failure = e;
+			} finally {
+				m.outstanding.decrementAndGet();
+			}
+		}
+
+		throw failure != null ? failure : new BoaException("No endpoints in the pool.");
+	}
+
+	/**
+	 * Makes a call that changes state on the least busy healthy endpoint.
+	 * The call is not tried on another endpoint, since it may have been
+	 * made before the failure.
+	 *
+	 * @param call the call to make
+	 * @return the call's result
+	 * @throws BoaException if the call failed
+	 */
+	public <T> T write(final Call<T> call) throws BoaException {
+		final Member m = pick(Collections.<Member>emptySet());
+		if (m == null)
+			throw new BoaException("No endpoints in the pool.");
+
+		m.outstanding.incrementAndGet();
+		try {
+			return call.call(m.client);
+		} catch (final BoaException e) {
+			if (isEndpointFailure(e))
+				m.healthy = false;
+			throw e;
+		} finally {
+			m.outstanding.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns a list of available input datasets, from the least busy endpoint.
+	 *
+	 * @return the datasets
+	 * @throws BoaException if there was a problem reading from the servers
+	 */
+	public List<InputHandle> getDatasets() throws BoaException {
+		return read(new Call<List<InputHandle>>() {
+			@Override
+			public List<InputHandle> call(final BoaClient client) throws BoaException {
+				return client.getDatasets();
+			}
+		});
+	}
+
+	/**
+	 * Returns a list of the user's most recent jobs on every healthy
+	 * endpoint, ordered from newest to oldest.
+	 *
+	 * @return a list of jobs
+	 * @throws BoaException if there was a problem reading from every server
+	 */
+	public List<JobHandle> getJobList() throws BoaException {
+		final List<JobHandle> jobs = new ArrayList<JobHandle>();
+		BoaException failure = null;
+		boolean any = false;
+
+		for (final Member m : members) {
+			if (!m.healthy)
+				continue;
+			m.outstanding.incrementAndGet();
+			try {
+				jobs.addAll(m.client.getJobList());
+				any = true;
+			} catch (final BoaException e) {
+				if (isEndpointFailure(e))
+					m.healthy = false;
+				failure = e;
+			} finally {
+				m.outstanding.decrementAndGet();
+			}
+		}
+
+		if (!any && failure != null)
+			throw failure;
+
+		Collections.sort(jobs, new Comparator<JobHandle>() {
+			@Override
+			public int compare(final JobHandle a, final JobHandle b) {
+				return b.getDate().compareTo(a.getDate());
+			}
+		});
+		return jobs;
+	}
+
+	/**
+	 * Submits a new query on the least busy endpoint, which then owns the job.
+	 *
+	 * @param query the query source code
+	 * @param dataset the name of the input dataset to query
+	 * @return a {@link JobHandle} for the new job
+	 * @throws BoaException if there was a problem submitting the job, or the endpoint has no such dataset
+	 */
+	public JobHandle query(final String query, final String dataset) throws BoaException {
+		return write(new Call<JobHandle>() {
+			@Override
+			public JobHandle call(final BoaClient client) throws BoaException {
+				final InputHandle input = client.getDataset(dataset);
+				if (input == null)
+					throw new BoaException("Unknown dataset '" + dataset + "'.");
+				return client.query(query, input);
+			}
+		});
+	}
+
+	/**
+	 * Stops checking endpoints and closes every client.
+	 *
+	 * @throws BoaException if a client could not be closed
+	 */
+	@Override
+	public void close() throws BoaException {
+		checker.shutdownNow();
+
+		BoaException failure = null;
+		for (final Member m : members) {
+			try {
+				m.client.close();
+			} catch (final BoaException e) {
+				failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Picks the healthy endpoint with the fewest calls in progress, starting
+	 * from a rotating position to break ties.  If no endpoint is healthy, any
+	 * logged in endpoint not yet tried is picked.
+	 */
+	private Member pick(final Set<Member> tried) {
+		final int size = members.size();
+		if (size == 0)
+			return null;
+
+		final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+		Member best = null;
+		Member fallback = null;
+		for (int i = 0; i < size; i++) {
+			final Member m = members.get((start + i) % size);
+			if (tried.contains(m))
+				continue;
+			if (!m.healthy) {
+				// a call would only fail with NotLoggedInException, hiding the real failure
+				if (!m.client.loggedIn)
+					continue;
+				if (fallback == null)
+					fallback = m;
+				continue;
+			}
+			if (best == null || m.outstanding.get() < best.outstanding.get())
+				best = m;
+		}
+		return best != null ? best : fallback;
+	}
+
+	/**
+	 * Returns whether a call failed because its endpoint could not be
+	 * reached, and not because the caller's deadline passed or was cancelled.
+	 */
+	private static boolean isEndpointFailure(final BoaException e) {
+		return Util.isTransportFailure(e) && !Util.isDeadlineFailure(e);
+	}
+
+	private void checkHealth() {
+		for (final Member m : members) {
+			if (m.healthy)
+				continue;
+			try {
+				if (!m.client.loggedIn) {
+					final String[] c = credentials;
+					if (c == null)
+						continue;
+					m.client.login(c[0], c[1]);
+				}
+				m.client.getJobCount();
+				m.healthy = true;
+			} catch (final BoaException e) {
+				// still down
+			}
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resources shared by many clients, such as one client per user account in
+ * a service (see {@link BoaClient#BoaClient(BoaRuntime, String, String)}).
+ *
+ * <p>
+ * Clients created with a runtime share its download scheduler, its dataset
+ * registry for their endpoint, its background threads, and (if set) its
+ * request limiter and hedging policy.  Each client then only keeps its own
+ * session.  The runtime also collects metrics about all API calls made by
+ * its clients.
+ * </p>
+ *
+ * <p>
+ * Background work that blocks on the server, such as submitting and polling
+ * jobs, runs on a fixed pool of threads.  Each client may only use some of
+ * them at once (by default a quarter), so one busy client can not stall
+ * the others.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class BoaRuntime implements AutoCloseable {
+	/**
+	 * Metrics about the calls made to one API method.
+	 */
+	public static final class MethodMetrics {
+		private final AtomicLong calls = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+
+		/**
+		 * Returns how many calls were made.
+		 *
+		 * @return the number of calls
+		 */
+		public long getCalls() {
+			return calls.get();
+		}
+
+		/**
+		 * Returns how many calls failed.
+		 *
+		 * @return the number of failed calls
+		 */
+		public long getFailures() {
+			return failures.get();
+		}
+
+		/**
+		 * Returns the average time a call took.
+		 *
+		 * @return the mean latency, in milliseconds
+		 */
+		public double getMeanLatency() {
+			final long n = calls.get();
+			return n == 0 ? 0 : nanos.get() / 1e6 / n;
+		}
+	}
+
+	private final DownloadScheduler downloadScheduler;
+	/** only keeps delays, and hands tasks over to the workers */
+	private final ScheduledExecutorService timer;
+	/** runs all blocking background work */
+	private final ExecutorService workers;
+	private final int threadsPerClient;
+	private final Map<String, DatasetRegistry> registries = new HashMap<String, DatasetRegistry>();
+	private final Map<String, MethodMetrics> metrics = new ConcurrentHashMap<String, MethodMetrics>();
+	private volatile RequestLimiter requestLimiter = null;
+	private volatile HedgingPolicy hedgingPolicy = null;
+
+	/**
+	 * Creates a runtime with 8 background threads (2 per client) and a
+	 * download scheduler allowing 16 downloads at once (4 per host).
+	 */
+	public BoaRuntime() {
+		this(8, new DownloadScheduler(16, 4, 0));
+	}
+
+	/**
+	 * Creates a runtime where each client may use a quarter of the
+	 * background threads at once.
+	 *
+	 * @param threads the number of background threads shared by all clients
+	 * @param downloadScheduler the scheduler all output downloads go through
+	 */
+	public BoaRuntime(final int threads, final DownloadScheduler downloadScheduler) {
+		this(threads, Math.max(1, threads / 4), downloadScheduler);
+	}
+
+	/**
+	 * Creates a runtime.
+	 *
+	 * @param threads the number of background threads shared by all clients
+	 * @param threadsPerClient the most background threads one client may use at once
+	 * @param downloadScheduler the scheduler all output downloads go through
+	 */
+	public BoaRuntime(final int threads, final int threadsPerClient, final DownloadScheduler downloadScheduler) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Argument 'threads' must be positive.");
+		if (threadsPerClient < 1 || threadsPerClient > threads)
+			throw new IllegalArgumentException("Argument 'threadsPerClient' must be between 1 and 'threads'.");
+
+		this.downloadScheduler = downloadScheduler;
+		this.threadsPerClient = threadsPerClient;
+		final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, OutputPrefetcher.daemonThreads("boa-runtime-timer"));
+		timer.setRemoveOnCancelPolicy(true);
+		this.timer = timer;
+		this.workers = Executors.newFixedThreadPool(threads, OutputPrefetcher.daemonThreads("boa-runtime"));
+	}
+
+	/**
+	 * Returns the scheduler all output downloads go through.
+	 *
+	 * @return the download scheduler
+	 */
+	public DownloadScheduler getDownloadScheduler() {
+		return downloadScheduler;
+	}
+
+	/**
+	 * Sets the request limiter used by clients created from now on.
+	 *
+	 * @param limiter the limiter to use, or <code>null</code> to not limit calls
+	 */
+	public void setRequestLimiter(final RequestLimiter limiter) {
+		this.requestLimiter = limiter;
+	}
+
+	/**
+	 * Returns the request limiter given to new clients.
+	 *
+	 * @return the limiter, or <code>null</code> if there is none
+	 */
+	public RequestLimiter getRequestLimiter() {
+		return requestLimiter;
+	}
+
+	/**
+	 * Sets the hedging policy used by clients created from now on.
+	 *
+	 * @param policy the policy to use, or <code>null</code> to disable hedging
+	 */
+	public void setHedgingPolicy(final HedgingPolicy policy) {
+		this.hedgingPolicy = policy;
+	}
+
+	/**
+	 * Returns the hedging policy given to new clients.
+	 *
+	 * @return the policy, or <code>null</code> if there is none
+	 */
+	public HedgingPolicy getHedgingPolicy() {
+		return hedgingPolicy;
+	}
+
+	/**
+	 * Returns the dataset registry shared by all clients of an endpoint.
+	 *
+	 * @param endpoint the endpoint's URL
+	 * @return the registry
+	 */
+	public synchronized DatasetRegistry getDatasetRegistry(final String endpoint) {
+		DatasetRegistry registry = registries.get(endpoint);
+		if (registry == null) {
+			registry = new DatasetRegistry();
+			registries.put(endpoint, registry);
+		}
+		return registry;
+	}
+
+	/**
+	 * Sets the dataset registry shared by all clients of an endpoint created
+	 * from now on, such as a registry kept in a file.
+	 *
+	 * @param endpoint the endpoint's URL
+	 * @param registry the registry
+	 */
+	public synchronized void setDatasetRegistry(final String endpoint, final DatasetRegistry registry) {
+		registries.put(endpoint, registry);
+	}
+
+	/**
+	 * Returns metrics about all API calls made by the runtime's clients,
+	 * by API method.
+	 *
+	 * @return the metrics for each method called so far
+	 */
+	public Map<String, MethodMetrics> getMetrics() {
+		return new HashMap<String, MethodMetrics>(metrics);
+	}
+
+	/**
+	 * Stops the background threads.  Clients created with the runtime can no
+	 * longer run background work.
+	 */
+	@Override
+	public void close() {
+		timer.shutdownNow();
+		workers.shutdownNow();
+		synchronized (this) {
+			for (final DatasetRegistry registry : registries.values())
+				registry.close();
+		}
+	}
+
+	/**
+	 * Returns a new client's share of the background threads.
+	 */
+	ScheduledExecutorService newClientExecutor() {
+		return new ClientExecutor(timer, workers, threadsPerClient);
+	}
+
+	/**
+	 * Records one API call.
+	 */
+	void record(final String method, final long nanos, final boolean failed) {
+		MethodMetrics m = metrics.get(method);
+		if (m == null) {
+			metrics.putIfAbsent(method, new MethodMetrics());
+			m = metrics.get(method);
+		}
+		m.calls.incrementAndGet();
+		m.nanos.addAndGet(nanos);
+		if (failed)
+			m.failures.incrementAndGet();
+	}
+
+	/**
+	 * Waits for the background threads to stop after {@link #close()}.
+	 *
+	 * @param timeout how long to wait
+	 * @param unit the unit of the timeout
+	 * @return <code>true</code> if the threads stopped
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		return timer.awaitTermination(timeout, unit)
+			&& workers.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+
+/**
+ * Applies a call to many jobs at once, with a bounded number of calls in
+ * flight (see {@link BoaClient#deleteJobs(Predicate)}).  Each operation has
+ * its own threads, rather than using a runtime's, so a large operation can
+ * not hold threads other clients need.
+ *
+ * @author rdyer
+ */
+final class BulkOperation {
+	/** how many jobs are read from the job list at a time */
+	private static final int PAGE_SIZE = 500;
+
+	/**
+	 * The call to apply to each job.
+	 */
+	interface Action {
+		void apply(int id) throws BoaException;
+	}
+
+	private final int parallelism;
+	private final Action action;
+	private final BulkResult.Listener listener;
+	private final BulkResult result = new BulkResult();
+	private final Semaphore slots;
+
+	BulkOperation(final int parallelism, final Action action, final BulkResult.Listener listener) {
+		this.parallelism = parallelism;
+		this.action = action;
+		this.listener = listener;
+		this.slots = new Semaphore(parallelism);
+	}
+
+	/**
+	 * Applies the call to the given jobs.
+	 */
+	BulkResult run(final Iterable<Integer> ids) throws BoaException {
+		final ExecutorService pool = pool();
+		try {
+			for (final int id : ids)
+				submit(pool, id);
+			drain();
+		} finally {
+			pool.shutdown();
+		}
+		return result;
+	}
+
+	/**
+	 * Applies the call to every job in the job list that matches a filter,
+	 * reading the list a page at a time.  Unless the call removes jobs, the
+	 * next page is read while the calls for the last one are still running.
+	 *
+	 * @param removes whether the call removes jobs from the list, so later jobs move up
+	 */
+	BulkResult run(final BoaClient client, final Predicate<JobHandle> filter, final boolean removes) throws BoaException {
+		final ExecutorService pool = pool();
+		final Set<Integer> seen = new HashSet<Integer>();
+		try {
+			int scanned = 0;
+			for (;;) {
+				// when calls remove jobs, those on the last page all finished, so the jobs removed are known
+				final int offset = removes ? scanned - result.getSucceededCount() : scanned;
+				final List<JobHandle> page;
+				try {
+					page = client.getJobList(offset, PAGE_SIZE);
+				} catch (final BoaException e) {
+					// report the failure once the calls in flight are accounted for
+					drain();
+					throw e;
+				}
+				for (final JobHandle job : page)
+					// jobs submitted meanwhile push the list down, so a job can be listed twice
+					if (seen.add(job.getId()) && filter.test(job))
+						submit(pool, job.getId());
+				// the next offset depends on how many jobs this page's calls removed
+				if (removes)
+					drain();
+
+				if (page.size() < PAGE_SIZE)
+					break;
+				scanned += page.size();
+			}
+			drain();
+		} finally {
+			pool.shutdown();
+		}
+		return result;
+	}
+
+	private ExecutorService pool() {
+		return Executors.newFixedThreadPool(parallelism, OutputPrefetcher.daemonThreads("boa-bulk"));
+	}
+
+	private void submit(final ExecutorService pool, final int id) throws BoaException {
+		try {
+			slots.acquire();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BoaException("Interrupted during bulk operation.", e);
+		}
+
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					action.apply(id);
+					result.succeeded(id);
+					if (listener != null)
+						listener.completed(id);
+				} catch (final BoaException e) {
+					result.failed(id, e);
+					if (listener != null)
+						listener.failed(id, e);
+				} finally {
+					slots.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for every call in flight to finish.
+	 */
+	private void drain() throws BoaException {
+		try {
+			slots.acquire(parallelism);
+			slots.release(parallelism);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BoaException("Interrupted during bulk operation.", e);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of a bulk operation on many jobs, such as
+ * {@link BoaClient#deleteJobs(java.util.function.Predicate)}.
+ *
+ * @author rdyer
+ */
+public final class BulkResult {
+	/**
+	 * Receives progress of a bulk operation.  Methods are called from the
+	 * operation's worker threads, possibly concurrently.
+	 */
+	public static abstract class Listener {
+		/**
+		 * Called when the operation succeeded on a job.
+		 *
+		 * @param id the job's id
+		 */
+		public void completed(final int id) { }
+
+		/**
+		 * Called when the operation failed on a job.
+		 *
+		 * @param id the job's id
+		 * @param e the reason it failed
+		 */
+		public void failed(final int id, final BoaException e) { }
+	}
+
+	private final List<Integer> succeeded = new ArrayList<Integer>();
+	private final Map<Integer, BoaException> failures = new LinkedHashMap<Integer, BoaException>();
+
+	/**
+	 * Returns the jobs the operation succeeded on, in completion order.
+	 *
+	 * @return the ids of the jobs
+	 */
+	public synchronized List<Integer> getSucceeded() {
+		return new ArrayList<Integer>(succeeded);
+	}
+
+	/**
+	 * Returns the jobs the operation failed on, with the reason.
+	 *
+	 * @return the failures, by job id
+	 */
+	public synchronized Map<Integer, BoaException> getFailures() {
+		return new LinkedHashMap<Integer, BoaException>(failures);
+	}
+
+	/**
+	 * Returns how many jobs the operation was applied to so far.
+	 *
+	 * @return the number of jobs that succeeded or failed
+	 */
+	public synchronized int getCount() {
+		return succeeded.size() + failures.size();
+	}
+
+	/**
+	 * Returns whether the operation succeeded on every job.
+	 *
+	 * @return <code>true</code> if there were no failures
+	 */
+	public synchronized boolean isSuccess() {
+		return failures.isEmpty();
+	}
+
+	synchronized int getSucceededCount() {
+		return succeeded.size();
+	}
+
+	synchronized void succeeded(final int id) {
+		succeeded.add(id);
+	}
+
+	synchronized void failed(final int id, final BoaException e) {
+		failures.put(id, e);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public synchronized String toString() {
+		return succeeded.size() + " succeeded, " + failures.size() + " failed";
+	}
+}
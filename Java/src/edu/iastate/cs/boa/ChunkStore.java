@@ -0,0 +1,391 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A content-addressed store for job outputs.  Each stored file is split into
+ * content-defined chunks, and each distinct chunk is stored only once no
+ * matter how many files contain it.
+ *
+ * <p>
+ * Chunk boundaries are chosen with a rolling (gear) hash over the content,
+ * so an insertion or deletion only changes the chunks around it.  Chunks are
+ * named by their SHA-256 hash and reference counted.  Removing a file only
+ * decrements the counts of its chunks; unreferenced chunks are deleted by
+ * {@link #gc()}.
+ * </p>
+ *
+ * <p>
+ * A store can be used as the local output storage of a client (see
+ * {@link BoaClient#setOutputStore(ChunkStore)}).
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class ChunkStore {
+	private static final int MIN_CHUNK = 16 * 1024;
+	private static final int MAX_CHUNK = 256 * 1024;
+	/** gives an average chunk size of about 64KB */
+	private static final long CHUNK_MASK = (1L << 16) - 1;
+
+	private static final long[] GEAR = new long[256];
+	static {
+		// fixed seed, so chunk boundaries are stable across processes
+		final Random r = new Random(0x626f61L);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = r.nextLong();
+	}
+
+	private final File chunkDir;
+	private final File manifestDir;
+	private final File refCountFile;
+	private final Map<String, Integer> refCounts = new HashMap<String, Integer>();
+
+	private ChunkStore(final File dir) throws IOException {
+		this.chunkDir = new File(dir, "chunks");
+		this.manifestDir = new File(dir, "manifests");
+		this.refCountFile = new File(dir, "refcounts");
+
+		if (!chunkDir.isDirectory() && !chunkDir.mkdirs())
+			throw new IOException("Could not create directory '" + chunkDir + "'.");
+		if (!manifestDir.isDirectory() && !manifestDir.mkdirs())
+			throw new IOException("Could not create directory '" + manifestDir + "'.");
+
+		if (refCountFile.exists())
+			loadRefCounts();
+		else
+			rebuildRefCounts();
+	}
+
+	/**
+	 * Opens (or creates) a store in the given directory.
+	 *
+	 * @param dir the directory holding the store
+	 * @return the opened store
+	 * @throws BoaException if the store could not be opened
+	 */
+	public static ChunkStore open(final File dir) throws BoaException {
+		try {
+			return new ChunkStore(dir);
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Checks if a file with the given name is in the store.
+	 *
+	 * @param name the name of the file
+	 * @return <code>true</code> if the file is in the store
+	 */
+	public synchronized boolean contains(final String name) {
+		return manifestFile(name).exists();
+	}
+
+	/**
+	 * Stores a file under the given name, replacing any file already stored
+	 * under that name.  Chunks already in the store are not written again.
+	 *
+	 * @param name the name to store the file under
+	 * @param f the file to store
+	 * @throws BoaException if the file could not be read or stored
+	 */
+	public synchronized void put(final String name, final File f) throws BoaException {
+		final List<String> chunks = new ArrayList<String>();
+
+		try (final InputStream in = new FileInputStream(f)) {
+			final byte[] buf = new byte[64 * 1024];
+			final ByteArrayOutputStream chunk = new ByteArrayOutputStream(MAX_CHUNK);
+			long hash = 0;
+			int cnt;
+			while ((cnt = in.read(buf)) > 0) {
+				int start = 0;
+				for (int i = 0; i < cnt; i++) {
+					hash = (hash << 1) + GEAR[buf[i] & 0xff];
+
+					final int size = chunk.size() + i - start + 1;
+					if ((size >= MIN_CHUNK && (hash & CHUNK_MASK) == 0) || size >= MAX_CHUNK) {
+						chunk.write(buf, start, i - start + 1);
+						chunks.add(storeChunk(chunk.toByteArray()));
+						chunk.reset();
+						hash = 0;
+						start = i + 1;
+					}
+				}
+				chunk.write(buf, start, cnt - start);
+			}
+			if (chunk.size() > 0)
+				chunks.add(storeChunk(chunk.toByteArray()));
+
+			final List<String> old = readManifest(name);
+
+			final File manifest = manifestFile(name);
+			final File tmp = new File(manifest.getPath() + ".tmp");
+			try (final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+				for (final String c : chunks) {
+					w.write(c);
+					w.newLine();
+				}
+			}
+
+			// counts are raised before the new manifest is live and lowered only
+			// after the old one is gone, so a crash never undercounts a live chunk
+			final Map<String, Integer> added = new HashMap<String, Integer>();
+			for (final String c : chunks)
+				addDelta(added, c, 1);
+			updateRefCounts(added);
+
+			replace(tmp, manifest);
+
+			if (old != null) {
+				final Map<String, Integer> removed = new HashMap<String, Integer>();
+				for (final String c : old)
+					addDelta(removed, c, -1);
+				updateRefCounts(removed);
+			}
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reassembles a stored file into the given file.
+	 *
+	 * @param name the name of the stored file
+	 * @param f where to write the file
+	 * @return <code>true</code> if the file was in the store, otherwise <code>false</code>
+	 * @throws BoaException if the file could not be read or written
+	 */
+	public synchronized boolean get(final String name, final File f) throws BoaException {
+		try {
+			final List<String> chunks = readManifest(name);
+			if (chunks == null)
+				return false;
+
+			try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(f))) {
+				final byte[] buf = new byte[4096];
+				for (final String c : chunks) {
+					try (final InputStream in = new FileInputStream(chunkFile(c))) {
+						int cnt;
+						while ((cnt = in.read(buf)) > 0)
+							out.write(buf, 0, cnt);
+					}
+				}
+			}
+			return true;
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Removes a stored file.  Its chunks are deleted by the next
+	 * {@link #gc()} if no other file references them.
+	 *
+	 * @param name the name of the stored file
+	 * @throws BoaException if the store could not be updated
+	 */
+	public synchronized void remove(final String name) throws BoaException {
+		try {
+			final List<String> chunks = readManifest(name);
+			if (chunks == null)
+				return;
+
+			manifestFile(name).delete();
+			final Map<String, Integer> deltas = new HashMap<String, Integer>();
+			for (final String c : chunks)
+				addDelta(deltas, c, -1);
+			updateRefCounts(deltas);
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Deletes all chunks that are no longer referenced by any stored file.
+	 * The reference counts are recomputed from the stored files first, so
+	 * counts left wrong by an interrupted update never delete a live chunk.
+	 *
+	 * @return the number of chunks deleted
+	 * @throws BoaException if the store could not be updated
+	 */
+	public synchronized int gc() throws BoaException {
+		try {
+			// also compacts the reference count log
+			refCounts.clear();
+			rebuildRefCounts();
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+
+		// includes chunks left behind by an interrupted put()
+		int deleted = 0;
+		final File[] dirs = chunkDir.listFiles();
+		if (dirs != null)
+			for (final File d : dirs) {
+				final File[] files = d.listFiles();
+				if (files != null)
+					for (final File f : files)
+						if (!refCounts.containsKey(f.getName()) && f.delete())
+							deleted++;
+			}
+		return deleted;
+	}
+
+	/**
+	 * Returns the number of distinct chunks in the store.
+	 *
+	 * @return the number of chunks
+	 */
+	public synchronized int getChunkCount() {
+		return refCounts.size();
+	}
+
+	private String storeChunk(final byte[] data) throws IOException {
+		final String hash = Util.sha256(data);
+
+		final File f = chunkFile(hash);
+		if (!f.exists()) {
+			f.getParentFile().mkdirs();
+			final File tmp = new File(f.getPath() + ".tmp");
+			try (final OutputStream out = new FileOutputStream(tmp)) {
+				out.write(data);
+			}
+			replace(tmp, f);
+		}
+
+		return hash;
+	}
+
+	private static void addDelta(final Map<String, Integer> counts, final String chunk, final int delta) {
+		final Integer count = counts.get(chunk);
+		counts.put(chunk, (count == null ? 0 : count) + delta);
+	}
+
+	/**
+	 * Applies reference count changes, appending them to the reference count
+	 * log instead of rewriting it.  The log is compacted by {@link #gc()}.
+	 */
+	private void updateRefCounts(final Map<String, Integer> deltas) throws IOException {
+		try (final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(refCountFile, true), StandardCharsets.UTF_8))) {
+			for (final Map.Entry<String, Integer> e : deltas.entrySet()) {
+				if (e.getValue() == 0)
+					continue;
+				addDelta(refCounts, e.getKey(), e.getValue());
+				w.write(e.getKey() + " " + e.getValue());
+				w.newLine();
+			}
+		}
+	}
+
+	private List<String> readManifest(final String name) throws IOException {
+		final File f = manifestFile(name);
+		if (!f.exists())
+			return null;
+
+		final List<String> chunks = new ArrayList<String>();
+		try (final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = r.readLine()) != null)
+				if (!line.isEmpty())
+					chunks.add(line);
+		}
+		return chunks;
+	}
+
+	private void loadRefCounts() throws IOException {
+		try (final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(refCountFile), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				final int idx = line.indexOf(' ');
+				if (idx != -1)
+					addDelta(refCounts, line.substring(0, idx), Integer.parseInt(line.substring(idx + 1)));
+			}
+		}
+	}
+
+	private void rebuildRefCounts() throws IOException {
+		final File[] manifests = manifestDir.listFiles();
+		if (manifests == null)
+			return;
+
+		for (final File m : manifests) {
+			if (m.getName().endsWith(".tmp"))
+				continue;
+			try (final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(m), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = r.readLine()) != null)
+					if (!line.isEmpty())
+						addDelta(refCounts, line, 1);
+			}
+		}
+		saveRefCounts();
+	}
+
+	private void saveRefCounts() throws IOException {
+		final File tmp = new File(refCountFile.getPath() + ".tmp");
+		try (final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+			for (final Map.Entry<String, Integer> e : refCounts.entrySet()) {
+				w.write(e.getKey() + " " + e.getValue());
+				w.newLine();
+			}
+		}
+		replace(tmp, refCountFile);
+	}
+
+	private File chunkFile(final String hash) {
+		return new File(new File(chunkDir, hash.substring(0, 2)), hash);
+	}
+
+	private File manifestFile(final String name) {
+		try {
+			return new File(manifestDir, URLEncoder.encode(name, "UTF-8"));
+		} catch (final UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void replace(final File from, final File to) throws IOException {
+		if (!from.renameTo(to)) {
+			to.delete();
+			if (!from.renameTo(to))
+				throw new IOException("Could not write '" + to + "'.");
+		}
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One client's share of a runtime's background threads (see
+ * {@link BoaRuntime}).
+ *
+ * <p>
+ * Delays are kept by the runtime's timer thread, which only hands tasks
+ * over, and tasks run on the runtime's pool of threads for blocking calls.
+ * At most a fixed number of one client's tasks run at once, and the rest
+ * wait in the client's own queue, so a client with much background work
+ * can not hold every thread and stall the other clients.
+ * </p>
+ *
+ * <p>
+ * A delayed task only joins the client's queue once its delay has passed,
+ * and its future stays cancellable until it actually runs.  Shutting down
+ * stops this client's tasks, not the runtime's threads, and delayed tasks
+ * that come due afterwards are cancelled.
+ * </p>
+ *
+ * @author rdyer
+ */
+final class ClientExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+	private final ScheduledExecutorService timer;
+	private final ExecutorService workers;
+	private final int maxRunning;
+
+	private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+	private int running = 0;
+	private boolean shutdown = false;
+
+	ClientExecutor(final ScheduledExecutorService timer, final ExecutorService workers, final int maxRunning) {
+		this.timer = timer;
+		this.workers = workers;
+		this.maxRunning = maxRunning;
+	}
+
+	@Override
+	public synchronized void execute(final Runnable task) {
+		if (shutdown || workers.isShutdown())
+			throw new RejectedExecutionException("Executor was shut down.");
+		queue.add(task);
+		dispatch();
+	}
+
+	/**
+	 * Hands queued tasks to the workers while under the limit.
+	 */
+	private void dispatch() {
+		while (running < maxRunning && !queue.isEmpty()) {
+			final Runnable task = queue.poll();
+			running++;
+			try {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run();
+						} finally {
+							finished();
+						}
+					}
+				});
+			} catch (final RejectedExecutionException e) {
+				// the runtime was closed
+				running--;
+				queue.clear();
+				return;
+			}
+		}
+	}
+
+	private synchronized void finished() {
+		running--;
+		dispatch();
+		notifyAll();
+	}
+
+	private synchronized void dequeue(final Runnable task) {
+		queue.remove(task);
+		notifyAll();
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
+		return schedule(Executors.callable(command), delay, unit);
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit) {
+		if (isShutdown())
+			throw new RejectedExecutionException("Executor was shut down.");
+
+		final OneShot<V> task = new OneShot<V>(callable, System.nanoTime() + unit.toNanos(delay));
+		task.arm();
+		return task;
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay, final long period, final TimeUnit unit) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Argument 'period' must be positive.");
+		if (isShutdown())
+			throw new RejectedExecutionException("Executor was shut down.");
+
+		final Periodic p = new Periodic(command, unit.toNanos(period), true);
+		p.start(unit.toNanos(initialDelay));
+		return p;
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay, final TimeUnit unit) {
+		if (delay <= 0)
+			throw new IllegalArgumentException("Argument 'delay' must be positive.");
+		if (isShutdown())
+			throw new RejectedExecutionException("Executor was shut down.");
+
+		final Periodic p = new Periodic(command, unit.toNanos(delay), false);
+		p.start(unit.toNanos(initialDelay));
+		return p;
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		shutdown = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized List<Runnable> shutdownNow() {
+		shutdown = true;
+		final List<Runnable> pending = new ArrayList<Runnable>(queue);
+		queue.clear();
+		notifyAll();
+		return pending;
+	}
+
+	@Override
+	public synchronized boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public synchronized boolean isTerminated() {
+		return shutdown && running == 0 && queue.isEmpty();
+	}
+
+	@Override
+	public synchronized boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!isTerminated()) {
+			final long left = deadline - System.nanoTime();
+			if (left <= 0)
+				return false;
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return true;
+	}
+
+	/**
+	 * A task run once after a delay.  The timer only queues it, and
+	 * cancelling it also takes it out of the queue.
+	 */
+	private final class OneShot<V> extends FutureTask<V> implements ScheduledFuture<V> {
+		/** when the task is due, in {@link System#nanoTime()} terms */
+		private final long time;
+		private volatile ScheduledFuture<?> handOff = null;
+
+		OneShot(final Callable<V> callable, final long time) {
+			super(callable);
+			this.time = time;
+		}
+
+		void arm() {
+			handOff = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (isDone())
+						return;
+					try {
+						execute(OneShot.this);
+					} catch (final RejectedExecutionException e) {
+						// shut down meanwhile
+						cancel(false);
+					}
+				}
+			}, time - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			if (!super.cancel(mayInterruptIfRunning))
+				return false;
+			final ScheduledFuture<?> h = handOff;
+			if (h != null)
+				h.cancel(false);
+			dequeue(this);
+			return true;
+		}
+
+		@Override
+		public long getDelay(final TimeUnit unit) {
+			return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(final Delayed o) {
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+		}
+	}
+
+	/**
+	 * A repeated task, either at a fixed rate or with a fixed delay between
+	 * the end of one run and the start of the next.  A run is never started
+	 * before the previous one ends, so a fixed-rate task that falls behind
+	 * runs late rather than at once.  Like {@link ScheduledExecutorService},
+	 * a run that throws stops the repetition.
+	 */
+	private final class Periodic implements ScheduledFuture<Object>, Runnable {
+		private final Runnable command;
+		private final long period;
+		private final boolean fixedRate;
+		private boolean cancelled = false;
+		/** when the next run is due, in {@link System#nanoTime()} terms */
+		private long time;
+		private ScheduledFuture<?> next = null;
+
+		Periodic(final Runnable command, final long period, final boolean fixedRate) {
+			this.command = command;
+			this.period = period;
+			this.fixedRate = fixedRate;
+		}
+
+		synchronized void start(final long initialDelay) {
+			time = System.nanoTime() + initialDelay;
+			arm();
+		}
+
+		private synchronized void arm() {
+			if (cancelled)
+				return;
+			try {
+				next = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							execute(Periodic.this);
+						} catch (final RejectedExecutionException e) {
+							stop();
+						}
+					}
+				}, time - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch (final RejectedExecutionException e) {
+				stop();
+			}
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (cancelled)
+					return;
+			}
+			try {
+				command.run();
+			} catch (final RuntimeException e) {
+				stop();
+				throw e;
+			}
+			synchronized (this) {
+				time = fixedRate ? time + period : System.nanoTime() + period;
+				arm();
+			}
+		}
+
+		private synchronized void stop() {
+			cancelled = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized boolean cancel(final boolean mayInterruptIfRunning) {
+			if (cancelled)
+				return false;
+			stop();
+			if (next != null)
+				next.cancel(false);
+			dequeue(this);
+			return true;
+		}
+
+		@Override
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public synchronized boolean isDone() {
+			return cancelled;
+		}
+
+		@Override
+		public synchronized Object get() throws InterruptedException {
+			while (!cancelled)
+				wait();
+			throw new CancellationException();
+		}
+
+		@Override
+		public synchronized Object get(final long timeout, final TimeUnit unit) throws InterruptedException, TimeoutException {
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while (!cancelled) {
+				final long left = deadline - System.nanoTime();
+				if (left <= 0)
+					throw new TimeoutException();
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+			throw new CancellationException();
+		}
+
+		@Override
+		public synchronized long getDelay(final TimeUnit unit) {
+			return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(final Delayed o) {
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+		}
+	}
+}
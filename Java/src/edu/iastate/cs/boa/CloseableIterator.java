@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.Iterator;
+
+/**
+ * An {@link Iterator} that streams over some local resource (such as a file)
+ * and must be closed when finished.  The interface is {@link AutoCloseable}
+ * for use in a try-with-resources block.
+ *
+ * <p>
+ * Any I/O error while iterating is thrown as an
+ * {@link java.io.UncheckedIOException}.
+ * </p>
+ *
+ * @param <T> the type of elements returned by the iterator
+ * @author rdyer
+ */
+public interface CloseableIterator<T> extends Iterator<T>, AutoCloseable {
+	/**
+	 * Releases any resources held by the iterator.  Calling this more than
+	 * once has no effect.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the list of input datasets for a client (see
+ * {@link BoaClient#setDatasetRegistry(DatasetRegistry)}), indexed by name
+ * and by id.
+ *
+ * <p>
+ * The list is loaded from the server the first time it is needed.  Once it
+ * is older than three quarters of its maximum age, it is reloaded in the
+ * background while the current list keeps being used, so callers only wait
+ * when there is no list at all.
+ * </p>
+ *
+ * <p>
+ * A registry kept in a file (see {@link #DatasetRegistry(File, long)}) saves
+ * each list it loads, and a new process starts from the saved list without
+ * asking the server.
+ * </p>
+ *
+ * <p>
+ * The background reload thread only lives while a reload runs.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class DatasetRegistry implements AutoCloseable {
+	private static final long DEFAULT_MAX_AGE = 86400000;
+	/** how long to wait before trying a failed background reload again */
+	private static final long RETRY_DELAY = 60000;
+
+	/**
+	 * Loads the list of datasets from the server.
+	 */
+	interface Loader {
+		List<InputHandle> load() throws BoaException;
+	}
+
+	/**
+	 * One loaded list of datasets and its indexes.
+	 */
+	private static final class Snapshot {
+		final List<InputHandle> list;
+		final Map<String, InputHandle> byName = new HashMap<String, InputHandle>();
+		final Map<Integer, InputHandle> byId = new HashMap<Integer, InputHandle>();
+		final long time;
+
+		Snapshot(final List<InputHandle> list, final long time) {
+			this.list = Collections.unmodifiableList(new ArrayList<InputHandle>(list));
+			this.time = time;
+			for (final InputHandle h : list) {
+				// like a linear scan, the first dataset with a name wins
+				if (!byName.containsKey(h.getName()))
+					byName.put(h.getName(), h);
+				byId.put(h.getId(), h);
+			}
+		}
+	}
+
+	private final File file;
+	private final long maxAge;
+	private final ThreadPoolExecutor refresher = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), OutputPrefetcher.daemonThreads("boa-datasets"));
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private volatile Snapshot snapshot = null;
+	private volatile long lastFailure = 0;
+
+	/**
+	 * Creates a registry kept only in memory, whose list is reloaded about
+	 * once a day.
+	 */
+	public DatasetRegistry() {
+		this(null, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Creates a registry kept in a file.  If the file holds a saved list, it
+	 * is used right away.
+	 *
+	 * @param file the file to save the list in, or <code>null</code> to keep it only in memory
+	 * @param maxAge the longest time to use a list before reloading it, in milliseconds
+	 */
+	public DatasetRegistry(final File file, final long maxAge) {
+		this.file = file;
+		this.maxAge = maxAge;
+		refresher.allowCoreThreadTimeOut(true);
+		if (file != null)
+			snapshot = read(file);
+	}
+
+	/**
+	 * Stops reloading the list in the background.  The registry can still be
+	 * used, but an old list is then only reloaded once it is reset.
+	 */
+	@Override
+	public void close() {
+		refresher.shutdownNow();
+	}
+
+	/**
+	 * Forgets the current list (and the saved list, if any), so the next use
+	 * reloads it.
+	 */
+	public void reset() {
+		snapshot = null;
+		if (file != null)
+			file.delete();
+	}
+
+	/**
+	 * Returns all datasets.
+	 */
+	List<InputHandle> getDatasets(final Loader loader) throws BoaException {
+		return get(loader).list;
+	}
+
+	/**
+	 * Returns the dataset with the given name, or <code>null</code> if there is none.
+	 */
+	InputHandle getByName(final Loader loader, final String name) throws BoaException {
+		return get(loader).byName.get(name);
+	}
+
+	/**
+	 * Returns the dataset with the given id, or <code>null</code> if there is none.
+	 */
+	InputHandle getById(final Loader loader, final int id) throws BoaException {
+		return get(loader).byId.get(id);
+	}
+
+	private Snapshot get(final Loader loader) throws BoaException {
+		final Snapshot s = snapshot;
+		if (s == null)
+			return load(loader);
+
+		final long now = System.currentTimeMillis();
+		if (now - s.time > maxAge / 4 * 3 && now - lastFailure > RETRY_DELAY)
+			refresh(loader);
+		return s;
+	}
+
+	private synchronized Snapshot load(final Loader loader) throws BoaException {
+		// another caller may have loaded it while we waited
+		if (snapshot != null)
+			return snapshot;
+
+		final Snapshot s = new Snapshot(loader.load(), System.currentTimeMillis());
+		snapshot = s;
+		if (file != null)
+			write(file, s);
+		return s;
+	}
+
+	private void refresh(final Loader loader) {
+		if (!refreshing.compareAndSet(false, true))
+			return;
+
+		try {
+			refresher.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final Snapshot s = new Snapshot(loader.load(), System.currentTimeMillis());
+						snapshot = s;
+						if (file != null)
+							write(file, s);
+					} catch (final BoaException e) {
+						// keep using the current list and try again later
+						lastFailure = System.currentTimeMillis();
+					} finally {
+						refreshing.set(false);
+					}
+				}
+			});
+		} catch (final RuntimeException e) {
+			refreshing.set(false);
+		}
+	}
+
+	private static Snapshot read(final File f) {
+		if (!f.exists())
+			return null;
+
+		try (final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+			final String header = r.readLine();
+			if (header == null)
+				return null;
+			final long time = Long.parseLong(header);
+
+			final List<InputHandle> list = new ArrayList<InputHandle>();
+			String line;
+			while ((line = r.readLine()) != null) {
+				final int space = line.indexOf(' ');
+				if (space == -1)
+					return null;
+				list.add(new InputHandle(Integer.parseInt(line.substring(0, space)), line.substring(space + 1)));
+			}
+			return new Snapshot(list, time);
+		} catch (final IOException e) {
+			return null;
+		} catch (final NumberFormatException e) {
+			return null;
+		} catch (final BoaException e) {
+			return null;
+		}
+	}
+
+	private static synchronized void write(final File f, final Snapshot s) {
+		final File tmp = new File(f.getPath() + ".tmp");
+		try {
+			try (final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+				w.write(Long.toString(s.time));
+				w.newLine();
+				for (final InputHandle h : s.list) {
+					w.write(h.getId() + " " + h.getName());
+					w.newLine();
+				}
+			}
+			if (!tmp.renameTo(f)) {
+				f.delete();
+				tmp.renameTo(f);
+			}
+		} catch (final IOException e) {
+			// the list is still used from memory
+			tmp.delete();
+		}
+	}
+}
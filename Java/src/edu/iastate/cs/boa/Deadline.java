@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A time limit for the API calls and downloads made by the current thread.
+ *
+ * <p>
+ * While a deadline is open, every call the thread makes has to finish
+ * before it; a call still running when it passes has its connection closed
+ * and fails with a {@link BoaException}.  Deadlines can be nested, and the
+ * earliest one applies.  A deadline can also be cancelled from another
+ * thread, which fails the calls in progress right away.
+ * </p>
+ *
+ * <pre>
+ * try (final Deadline d = Deadline.after(10, TimeUnit.SECONDS)) {
+ *   client.getJob(id).getOutput(file);
+ * }
+ * </pre>
+ *
+ * <p>
+ * Each client can also limit every single call (see
+ * {@link BoaClient#setCallTimeout(long)}).
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class Deadline implements AutoCloseable {
+	static final String EXCEEDED = "Deadline exceeded.";
+	static final String CANCELLED = "Call cancelled.";
+
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+	private static final ScheduledThreadPoolExecutor WATCHDOG;
+	static {
+		WATCHDOG = new ScheduledThreadPoolExecutor(1, OutputPrefetcher.daemonThreads("boa-deadline"));
+		WATCHDOG.setRemoveOnCancelPolicy(true);
+	}
+
+	private final Deadline parent;
+	/** when the deadline passes, in {@link System#nanoTime()} terms, or <code>Long.MAX_VALUE</code> for never */
+	private final long expires;
+	private final ScheduledFuture<?> expiry;
+	private final boolean bound;
+	private final Set<URLConnection> connections = new HashSet<URLConnection>();
+	private String failure = null;
+
+	Deadline(final Deadline parent, final long expires, final boolean bound) {
+		this.parent = parent;
+		this.expires = parent == null ? expires : Math.min(expires, parent.expires);
+		this.bound = bound;
+
+		final long delay = this.expires - System.nanoTime();
+		if (this.expires == Long.MAX_VALUE)
+			this.expiry = null;
+		else
+			this.expiry = WATCHDOG.schedule(new Runnable() {
+				@Override
+				public void run() {
+					fail(EXCEEDED);
+				}
+			}, Math.max(0, delay), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Opens a deadline for the current thread, which lasts until it is closed.
+	 *
+	 * @param timeout how long calls may take from now
+	 * @param unit the unit of the timeout
+	 * @return the deadline
+	 */
+	public static Deadline after(final long timeout, final TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Argument 'timeout' must not be negative.");
+		final long now = System.nanoTime();
+		final long nanos = unit.toNanos(timeout);
+		final Deadline d = new Deadline(CURRENT.get(), nanos > Long.MAX_VALUE - now ? Long.MAX_VALUE - 1 : now + nanos, true);
+		CURRENT.set(d);
+		return d;
+	}
+
+	/**
+	 * Returns how long is left before the deadline.
+	 *
+	 * @param unit the unit to return
+	 * @return the time left, or 0 if the deadline passed or was cancelled
+	 */
+	public long remaining(final TimeUnit unit) {
+		if (failure() != null)
+			return 0;
+		if (expires == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
+		return unit.convert(Math.max(0, expires - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns whether the deadline passed or was cancelled.
+	 *
+	 * @return <code>true</code> if calls can no longer be made
+	 */
+	public boolean isExpired() {
+		return failure() != null;
+	}
+
+	/**
+	 * Cancels the deadline, closing the connections of calls in progress.
+	 * The calls fail, and no more calls can be made under the deadline.
+	 */
+	public void cancel() {
+		fail(CANCELLED);
+	}
+
+	/**
+	 * Closes the deadline.  Calls made by the thread from now on are only
+	 * limited by the deadlines around this one, if any.
+	 */
+	@Override
+	public void close() {
+		if (expiry != null)
+			expiry.cancel(false);
+		if (bound && CURRENT.get() == this) {
+			if (parent == null)
+				CURRENT.remove();
+			else
+				CURRENT.set(parent);
+		}
+	}
+
+	/**
+	 * Returns the current thread's deadline, or <code>null</code> if none.
+	 */
+	static Deadline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Makes a deadline the current thread's, such as for work done on behalf
+	 * of another thread.
+	 *
+	 * @return the thread's previous deadline, to pass to {@link #exit(Deadline)}
+	 */
+	static Deadline enter(final Deadline d) {
+		final Deadline previous = CURRENT.get();
+		if (d == null)
+			CURRENT.remove();
+		else
+			CURRENT.set(d);
+		return previous;
+	}
+
+	static void exit(final Deadline previous) {
+		enter(previous);
+	}
+
+	/**
+	 * Returns why calls can no longer be made, or <code>null</code> if they can.
+	 */
+	String failure() {
+		for (Deadline d = this; d != null; d = d.parent) {
+			synchronized (d) {
+				if (d.failure != null)
+					return d.failure;
+			}
+		}
+		return System.nanoTime() - expires >= 0 && expires != Long.MAX_VALUE ? EXCEEDED : null;
+	}
+
+	/**
+	 * Limits a connection's timeouts to the time left, and closes it if the
+	 * deadline passes or is cancelled while it is open.
+	 *
+	 * @throws InterruptedIOException if the deadline already passed or was cancelled
+	 */
+	void register(final URLConnection conn) throws InterruptedIOException {
+		final String why = failure();
+		if (why != null)
+			throw new InterruptedIOException(why);
+
+		if (expires != Long.MAX_VALUE) {
+			final long left = Math.max(1, TimeUnit.NANOSECONDS.toMillis(expires - System.nanoTime()));
+			final int ms = (int)Math.min(Integer.MAX_VALUE, left);
+			if (conn.getConnectTimeout() == 0 || conn.getConnectTimeout() > ms)
+				conn.setConnectTimeout(ms);
+			if (conn.getReadTimeout() == 0 || conn.getReadTimeout() > ms)
+				conn.setReadTimeout(ms);
+		}
+
+		for (Deadline d = this; d != null; d = d.parent) {
+			synchronized (d) {
+				if (d.failure != null)
+					throw new InterruptedIOException(d.failure);
+				d.connections.add(conn);
+			}
+		}
+	}
+
+	void unregister(final URLConnection conn) {
+		for (Deadline d = this; d != null; d = d.parent) {
+			synchronized (d) {
+				d.connections.remove(conn);
+			}
+		}
+	}
+
+	private void fail(final String why) {
+		final List<URLConnection> open;
+		synchronized (this) {
+			if (failure != null)
+				return;
+			failure = why;
+			open = new ArrayList<URLConnection>(connections);
+			connections.clear();
+		}
+
+		for (final URLConnection conn : open)
+			if (conn instanceof HttpURLConnection)
+				((HttpURLConnection)conn).disconnect();
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Coordinates all output downloads made by a client (see
+ * {@link BoaClient#setDownloadScheduler(DownloadScheduler)}).
+ *
+ * <p>
+ * Downloads wait in a priority queue for a slot.  A slot is given out only
+ * if both the total number of active downloads and the number of active
+ * downloads from the same host are under their limits.  All downloads share
+ * one bandwidth budget.
+ * </p>
+ *
+ * <p>
+ * Interactive downloads (such as {@link JobHandle#getOutput(java.io.File)})
+ * always go before bulk downloads (such as prefetching, see
+ * {@link OutputPrefetcher}).  While any interactive download is active or
+ * waiting, bulk downloads in progress are paused and give up their slot
+ * until the interactive downloads finish.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class DownloadScheduler {
+	/**
+	 * The priority of a download.
+	 */
+	enum Priority {
+		INTERACTIVE,
+		BULK
+	}
+
+	/**
+	 * A download's place in the scheduler.
+	 */
+	final class Ticket implements Comparable<Ticket> {
+		final String host;
+		final Priority priority;
+		final long seq;
+		boolean granted = false;
+
+		Ticket(final String host, final Priority priority, final long seq) {
+			this.host = host;
+			this.priority = priority;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(final Ticket t) {
+			final int c = priority.compareTo(t.priority);
+			return c != 0 ? c : Long.compare(seq, t.seq);
+		}
+	}
+
+	private final int maxConcurrent;
+	private final int maxPerHost;
+	private final TokenBucket bandwidth;
+
+	private final TreeSet<Ticket> waiting = new TreeSet<Ticket>();
+	private final Map<String, Integer> activePerHost = new HashMap<String, Integer>();
+	private int active = 0;
+	private int activeInteractive = 0;
+	private int waitingInteractive = 0;
+	private long nextSeq = 0;
+
+	/**
+	 * Creates a scheduler.
+	 *
+	 * @param maxConcurrent the most downloads active at once
+	 * @param maxPerHost the most downloads active at once from a single host
+	 * @param maxBytesPerSecond the bandwidth budget for all downloads, or 0 for no limit
+	 */
+	public DownloadScheduler(final int maxConcurrent, final int maxPerHost, final long maxBytesPerSecond) {
+		if (maxConcurrent < 1)
+			throw new IllegalArgumentException("Argument 'maxConcurrent' must be positive.");
+		if (maxPerHost < 1)
+			throw new IllegalArgumentException("Argument 'maxPerHost' must be positive.");
+
+		this.maxConcurrent = maxConcurrent;
+		this.maxPerHost = maxPerHost;
+		this.bandwidth = maxBytesPerSecond > 0 ? new TokenBucket(maxBytesPerSecond, maxBytesPerSecond) : null;
+	}
+
+	/**
+	 * Returns the number of downloads currently active.
+	 *
+	 * @return the number of active downloads
+	 */
+	public synchronized int getActiveCount() {
+		return active;
+	}
+
+	/**
+	 * Returns the number of downloads currently waiting for a slot.
+	 *
+	 * @return the number of waiting downloads
+	 */
+	public synchronized int getWaitingCount() {
+		return waiting.size();
+	}
+
+	/**
+	 * Waits for a slot to download from the given host.
+	 */
+	synchronized Ticket acquire(final String host, final Priority priority) throws InterruptedException {
+		final Ticket t = new Ticket(host, priority, nextSeq++);
+		enqueue(t);
+		awaitGrant(t);
+		return t;
+	}
+
+	/**
+	 * Gives up a download's slot.
+	 */
+	synchronized void release(final Ticket t) {
+		if (t.granted) {
+			deactivate(t);
+		} else if (waiting.remove(t) && t.priority == Priority.INTERACTIVE) {
+			waitingInteractive--;
+		}
+		dispatch();
+	}
+
+	/**
+	 * Accounts for data transferred by a download.  Waits for the bandwidth
+	 * budget, and pauses bulk downloads while interactive downloads need to go.
+	 */
+	void transferred(final Ticket t, final int bytes) throws InterruptedException {
+		if (t.priority == Priority.BULK) {
+			synchronized (this) {
+				if (activeInteractive > 0 || waitingInteractive > 0) {
+					deactivate(t);
+					enqueue(t);
+					awaitGrant(t);
+				}
+			}
+		}
+
+		if (bandwidth != null)
+			bandwidth.acquire(bytes);
+	}
+
+	private void enqueue(final Ticket t) {
+		waiting.add(t);
+		if (t.priority == Priority.INTERACTIVE)
+			waitingInteractive++;
+		dispatch();
+	}
+
+	private void awaitGrant(final Ticket t) throws InterruptedException {
+		try {
+			while (!t.granted)
+				wait();
+		} catch (final InterruptedException e) {
+			release(t);
+			throw e;
+		}
+	}
+
+	private void deactivate(final Ticket t) {
+		t.granted = false;
+		active--;
+		if (t.priority == Priority.INTERACTIVE)
+			activeInteractive--;
+		final int count = activePerHost.get(t.host) - 1;
+		if (count == 0)
+			activePerHost.remove(t.host);
+		else
+			activePerHost.put(t.host, count);
+	}
+
+	/**
+	 * Grants slots to waiting downloads, in priority order.
+	 */
+	private void dispatch() {
+		boolean changed = false;
+
+		final Iterator<Ticket> it = waiting.iterator();
+		while (active < maxConcurrent && it.hasNext()) {
+			final Ticket t = it.next();
+			if (t.priority == Priority.BULK && (activeInteractive > 0 || waitingInteractive > 0))
+				break;
+
+			final Integer count = activePerHost.get(t.host);
+			if (count != null && count >= maxPerHost)
+				continue;
+
+			it.remove();
+			t.granted = true;
+			active++;
+			if (t.priority == Priority.INTERACTIVE) {
+				waitingInteractive--;
+				activeInteractive++;
+			}
+			activePerHost.put(t.host, count == null ? 1 : count + 1);
+			changed = true;
+		}
+
+		if (changed)
+			notifyAll();
+	}
+}
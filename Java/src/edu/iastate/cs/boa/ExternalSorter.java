@@ -0,0 +1,267 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * An external merge sort.  Elements are buffered in memory until the memory
+ * budget is reached, at which point the buffer is sorted and spilled to a
+ * run file.  Runs are then lazily merged when iterating the result.
+ *
+ * <p>
+ * Elements are spilled one per line using the given encoder, so encoded
+ * elements must not contain line breaks.
+ * </p>
+ *
+ * @author rdyer
+ */
+final class ExternalSorter<T> {
+	/** the default memory budget, in bytes */
+	static final long DEFAULT_MAX_MEMORY = 64L * 1024 * 1024;
+
+	/** the most runs to merge at once */
+	private static final int MAX_FAN_IN = 64;
+
+	private final Comparator<? super T> comparator;
+	private final Function<? super T, String> encoder;
+	private final Function<String, ? extends T> decoder;
+	private final long maxMemory;
+	private final File tmpDir;
+
+	private List<T> buffer = new ArrayList<T>();
+	private long bufferSize = 0;
+	private final List<File> runs = new ArrayList<File>();
+
+	ExternalSorter(final Comparator<? super T> comparator, final Function<? super T, String> encoder, final Function<String, ? extends T> decoder, final long maxMemory, final File tmpDir) {
+		if (maxMemory < 1)
+			throw new IllegalArgumentException("Argument 'maxMemory' must be positive.");
+
+		this.comparator = comparator;
+		this.encoder = encoder;
+		this.decoder = decoder;
+		this.maxMemory = maxMemory;
+		this.tmpDir = tmpDir;
+	}
+
+	/**
+	 * Adds an element to be sorted, spilling to disk if needed.
+	 *
+	 * @param item the element to add
+	 * @throws IOException if spilling to disk fails
+	 */
+	void add(final T item) throws IOException {
+		buffer.add(item);
+		// rough estimate of the in-memory size of the element
+		bufferSize += 2L * encoder.apply(item).length() + 64;
+
+		if (bufferSize >= maxMemory)
+			spill();
+	}
+
+	/**
+	 * Returns the sorted elements.  No more elements may be added after
+	 * calling this.  The returned iterator deletes any spill files when closed.
+	 *
+	 * @return an iterator over all added elements, in sorted order
+	 * @throws IOException if spilling or merging fails
+	 */
+	CloseableIterator<T> sort() throws IOException {
+		if (runs.isEmpty()) {
+			Collections.sort(buffer, comparator);
+			final Iterator<T> it = buffer.iterator();
+			buffer = null;
+			return new CloseableIterator<T>() {
+				@Override
+				public boolean hasNext() { return it.hasNext(); }
+				@Override
+				public T next() { return it.next(); }
+				@Override
+				public void close() { }
+			};
+		}
+
+		if (!buffer.isEmpty())
+			spill();
+		buffer = null;
+
+		// reduce the number of runs until they can be merged in one pass
+		try {
+			while (runs.size() > MAX_FAN_IN) {
+				final List<File> group = new ArrayList<File>(runs.subList(0, MAX_FAN_IN));
+				runs.subList(0, MAX_FAN_IN).clear();
+
+				File merged = null;
+				try {
+					merged = newRunFile();
+					try (final MergeIterator it = new MergeIterator(group, false);
+							final BufferedWriter writer = newWriter(merged)) {
+						while (it.hasNext()) {
+							writer.write(encoder.apply(it.next()));
+							writer.newLine();
+						}
+					}
+					runs.add(merged);
+					merged = null;
+				} finally {
+					// the group is no longer in the runs, so discard() would miss it
+					for (final File f : group)
+						f.delete();
+					if (merged != null)
+						merged.delete();
+				}
+			}
+
+			return new MergeIterator(new ArrayList<File>(runs), true);
+		} catch (final IOException | RuntimeException e) {
+			discard();
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes any spill files created so far.
+	 */
+	void discard() {
+		for (final File f : runs)
+			f.delete();
+		runs.clear();
+		buffer = null;
+	}
+
+	private void spill() throws IOException {
+		Collections.sort(buffer, comparator);
+
+		final File run = newRunFile();
+		runs.add(run);
+		try (final BufferedWriter writer = newWriter(run)) {
+			for (final T item : buffer) {
+				writer.write(encoder.apply(item));
+				writer.newLine();
+			}
+		}
+
+		buffer.clear();
+		bufferSize = 0;
+	}
+
+	private File newRunFile() throws IOException {
+		return File.createTempFile("boa-sort", ".run", tmpDir);
+	}
+
+	private static BufferedWriter newWriter(final File f) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8));
+	}
+
+	private static BufferedReader newReader(final File f) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Merges a set of sorted run files.
+	 */
+	private final class MergeIterator implements CloseableIterator<T> {
+		private final List<File> files;
+		private final boolean deleteOnClose;
+		private final List<LineIterator<T>> iterators = new ArrayList<LineIterator<T>>();
+		private final PriorityQueue<Head> heads;
+
+		MergeIterator(final List<File> files, final boolean deleteOnClose) throws IOException {
+			this.files = files;
+			this.deleteOnClose = deleteOnClose;
+			this.heads = new PriorityQueue<Head>(Math.max(1, files.size()), new Comparator<Head>() {
+				@Override
+				public int compare(final Head h1, final Head h2) {
+					return comparator.compare(h1.item, h2.item);
+				}
+			});
+
+			try {
+				for (final File f : files) {
+					final LineIterator<T> it = new LineIterator<T>(newReader(f)) {
+						@Override
+						protected T convert(final String line) {
+							return decoder.apply(line);
+						}
+					};
+					iterators.add(it);
+					if (it.hasNext())
+						heads.add(new Head(it.next(), it));
+				}
+			} catch (final IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		@Override
+		public T next() {
+			final Head h = heads.poll();
+			if (h == null)
+				throw new NoSuchElementException();
+
+			final T item = h.item;
+			if (h.source.hasNext()) {
+				h.item = h.source.next();
+				heads.add(h);
+			}
+			return item;
+		}
+
+		@Override
+		public void close() {
+			for (final LineIterator<T> it : iterators)
+				it.close();
+			iterators.clear();
+			heads.clear();
+			if (deleteOnClose)
+				for (final File f : files)
+					f.delete();
+		}
+
+		private final class Head {
+			T item;
+			final Iterator<T> source;
+
+			Head(final T item, final Iterator<T> source) {
+				this.item = item;
+				this.source = source;
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+/**
+ * Interfaces for publishing items to subscribers with backpressure, the same
+ * as <code>java.util.concurrent.Flow</code> (which needs Java 9).
+ *
+ * @author rdyer
+ */
+public final class Flow {
+	private Flow() {
+	}
+
+	/**
+	 * A source of items, like <code>java.util.concurrent.Flow.Publisher</code>.
+	 */
+	public interface Publisher<T> {
+		/**
+		 * Adds a subscriber.
+		 *
+		 * @param subscriber the subscriber
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * A receiver of items, like <code>java.util.concurrent.Flow.Subscriber</code>.
+	 */
+	public interface Subscriber<T> {
+		/**
+		 * Called once, before any other method.
+		 *
+		 * @param subscription the new subscription
+		 */
+		void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called with each requested item.
+		 *
+		 * @param item the item
+		 */
+		void onNext(T item);
+
+		/**
+		 * Called if the subscription failed.  No more methods are called.
+		 *
+		 * @param throwable the failure
+		 */
+		void onError(Throwable throwable);
+
+		/**
+		 * Called when no more items will be sent.  No more methods are called.
+		 */
+		void onComplete();
+	}
+
+	/**
+	 * Links a subscriber to a publisher, like <code>java.util.concurrent.Flow.Subscription</code>.
+	 */
+	public interface Subscription {
+		/**
+		 * Asks for more items.
+		 *
+		 * @param n how many more items to send (must be positive)
+		 */
+		void request(long n);
+
+		/**
+		 * Stops sending items.
+		 */
+		void cancel();
+	}
+}
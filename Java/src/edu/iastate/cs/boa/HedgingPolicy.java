@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cuts the tail latency of read-only API calls made by a client (see
+ * {@link BoaClient#setHedgingPolicy(HedgingPolicy)}).
+ *
+ * <p>
+ * If a read-only call takes longer than most recent calls to the same method
+ * (by default, longer than 95% of them), a second copy of the call is sent
+ * and whichever answers first is used.  Calls that fail to reach the server
+ * are retried after a randomized, growing delay.
+ * </p>
+ *
+ * <p>
+ * Extra requests are limited by a budget: each call earns a fraction of a
+ * request (by default 10%), and each hedge or retry spends one, so extra
+ * load on the server stays bounded even while it is struggling.  Calls that
+ * change state, such as submitting, stopping or deleting jobs, are never
+ * hedged or retried.
+ * </p>
+ *
+ * <p>
+ * Each attempt of a hedged call runs under its own {@link Deadline}, within
+ * the caller's, and the attempt that loses is cancelled so its connection
+ * is closed rather than left to time out.  Hedged calls run on at most 32
+ * threads.  While they are all busy, and
+ * after the policy is closed, calls run on the caller's thread unhedged.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class HedgingPolicy implements AutoCloseable {
+	/** the fewest latency samples needed before hedging a method */
+	private static final int MIN_SAMPLES = 20;
+	private static final int MAX_SAMPLES = 256;
+	private static final long MIN_HEDGE_DELAY = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final double MAX_BUDGET = 10;
+	private static final int MAX_THREADS = 32;
+
+	private final double percentile;
+	private final int maxRetries;
+	private final long retryDelay;
+	private final double budgetRatio;
+
+	private final Map<String, LatencyTracker> trackers = new ConcurrentHashMap<String, LatencyTracker>();
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), OutputPrefetcher.daemonThreads("boa-hedge"));
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private double budget = MAX_BUDGET;
+
+	/**
+	 * Creates a policy that hedges calls slower than 95% of recent calls,
+	 * retries up to 2 times starting at 100 ms, and allows 10% extra requests.
+	 */
+	public HedgingPolicy() {
+		this(0.95, 2, 100, 0.1);
+	}
+
+	/**
+	 * Creates a policy.
+	 *
+	 * @param percentile how slow a call must be, compared to recent calls of the same method, to hedge it (between 0 and 1)
+	 * @param maxRetries the most times to retry a call that failed to reach the server
+	 * @param retryDelay the base delay before retrying, in milliseconds (doubled on each retry, then randomized)
+	 * @param budgetRatio the most extra requests to send, as a fraction of all calls
+	 */
+	public HedgingPolicy(final double percentile, final int maxRetries, final long retryDelay, final double budgetRatio) {
+		if (percentile <= 0 || percentile >= 1)
+			throw new IllegalArgumentException("Argument 'percentile' must be between 0 and 1.");
+		if (maxRetries < 0)
+			throw new IllegalArgumentException("Argument 'maxRetries' can not be negative.");
+
+		this.percentile = percentile;
+		this.maxRetries = maxRetries;
+		this.retryDelay = TimeUnit.MILLISECONDS.toNanos(retryDelay);
+		this.budgetRatio = budgetRatio;
+	}
+
+	/**
+	 * Returns how many hedged requests were sent.
+	 *
+	 * @return the number of hedges
+	 */
+	public long getHedgeCount() {
+		return hedges.get();
+	}
+
+	/**
+	 * Returns how many calls were retried.
+	 *
+	 * @return the number of retries
+	 */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	/**
+	 * Stops the hedging threads.  Calls made afterwards are still retried,
+	 * but no longer hedged.
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Makes a read-only call, hedging and retrying it as needed.
+	 *
+	 * @param method the API method (or other label) the call's latency is tracked under
+	 * @param call makes one attempt of the call
+	 * @return the result of the first attempt to succeed
+	 */
+	<T> T execute(final String method, final Callable<T> call) throws Exception {
+		LatencyTracker tracker = trackers.get(method);
+		if (tracker == null) {
+			trackers.putIfAbsent(method, new LatencyTracker());
+			tracker = trackers.get(method);
+		}
+
+		deposit();
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return hedged(tracker, call);
+			} catch (final Exception e) {
+				// a call that ran out of the caller's time would only fail again
+				if (attempt >= maxRetries || !Util.isTransportFailure(e) || Util.isDeadlineFailure(e) || !withdraw())
+					throw e;
+				retries.incrementAndGet();
+				// full jitter: anywhere from no delay up to the doubled base delay
+				TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong((retryDelay << attempt) + 1));
+			}
+		}
+	}
+
+	private <T> T hedged(final LatencyTracker tracker, final Callable<T> call) throws Exception {
+		final long delay = tracker.percentile(percentile);
+		if (delay < 0)
+			return timed(tracker, call).call();
+
+		final Deadline caller = Deadline.current();
+		final Deadline firstLimit = new Deadline(caller, Long.MAX_VALUE, false);
+		final Deadline secondLimit = new Deadline(caller, Long.MAX_VALUE, false);
+
+		final CompletionService<T> cs = new ExecutorCompletionService<T>(executor);
+		final Future<T> first;
+		try {
+			first = cs.submit(timed(tracker, under(firstLimit, call)));
+		} catch (final RejectedExecutionException e) {
+			// every thread is busy (or the policy was closed)
+			return timed(tracker, call).call();
+		}
+		Future<T> second = null;
+		try {
+			Future<T> done = cs.poll(Math.max(delay, MIN_HEDGE_DELAY), TimeUnit.NANOSECONDS);
+			if (done == null && withdraw()) {
+				try {
+					second = cs.submit(timed(tracker, under(secondLimit, call)));
+					hedges.incrementAndGet();
+				} catch (final RejectedExecutionException e) {
+					refund();
+				}
+			}
+			if (done == null)
+				done = cs.take();
+
+			try {
+				return done.get();
+			} catch (final ExecutionException e) {
+				// the other attempt may still succeed
+				if (second == null)
+					throw unwrap(e);
+				try {
+					return cs.take().get();
+				} catch (final ExecutionException e2) {
+					throw unwrap(e);
+				}
+			}
+		} finally {
+			// interrupting does not stop a blocked read, closing the connection does
+			firstLimit.cancel();
+			secondLimit.cancel();
+			first.cancel(true);
+			if (second != null)
+				second.cancel(true);
+		}
+	}
+
+	/**
+	 * Runs an attempt on another thread under its own deadline.
+	 */
+	private static <T> Callable<T> under(final Deadline limit, final Callable<T> call) {
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				final Deadline previous = Deadline.enter(limit);
+				try {
+					return call.call();
+				} finally {
+					Deadline.exit(previous);
+				}
+			}
+		};
+	}
+
+	private static <T> Callable<T> timed(final LatencyTracker tracker, final Callable<T> call) {
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				final long start = System.nanoTime();
+				final T result = call.call();
+				tracker.record(System.nanoTime() - start);
+				return result;
+			}
+		};
+	}
+
+	private static Exception unwrap(final ExecutionException e) {
+		final Throwable cause = e.getCause();
+		if (cause instanceof Exception)
+			return (Exception)cause;
+		if (cause instanceof Error)
+			throw (Error)cause;
+		return e;
+	}
+
+	private synchronized void deposit() {
+		budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+	}
+
+	private synchronized void refund() {
+		budget = Math.min(MAX_BUDGET, budget + 1);
+	}
+
+	private synchronized boolean withdraw() {
+		if (budget < 1)
+			return false;
+		budget--;
+		return true;
+	}
+
+	/**
+	 * Keeps the most recent latencies of one method.
+	 */
+	private static final class LatencyTracker {
+		private final long[] samples = new long[MAX_SAMPLES];
+		private int count = 0;
+		private int next = 0;
+
+		synchronized void record(final long latency) {
+			samples[next] = latency;
+			next = (next + 1) % samples.length;
+			if (count < samples.length)
+				count++;
+		}
+
+		/**
+		 * Returns the given percentile of recent latencies, or -1 if there
+		 * are too few samples.
+		 */
+		synchronized long percentile(final double p) {
+			if (count < MIN_SAMPLES)
+				return -1;
+			final long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			return sorted[Math.min(count - 1, (int)(p * count))];
+		}
+	}
+}
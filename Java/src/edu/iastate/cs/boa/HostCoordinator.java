@@ -0,0 +1,602 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets the processes on one host that use the same account share their job
+ * polling and output downloads (see
+ * {@link BoaClient#setHostCoordinator(HostCoordinator)}).
+ *
+ * <p>
+ * The processes share a directory.  One of them is elected by holding a lock
+ * on a file in it, and only that process polls the server for the jobs the
+ * others are waiting on.  It keeps their states in a table mapped into every
+ * process's memory, which the others read instead of calling the server.
+ * When the elected process exits, its lock is released and another process
+ * takes over.  A process that finds a job missing from the table (or not
+ * updated recently) asks the server itself once and shares the answer, and
+ * the elected process keeps the job up to date from then on.
+ * </p>
+ *
+ * <p>
+ * Outputs of finished jobs are downloaded once per host into the directory,
+ * and copied from there by every process that asks for them.
+ * </p>
+ *
+ * <p>
+ * Writers to the table exclude each other with a file lock, and readers
+ * take no lock: each slot carries a sequence number that is odd while the
+ * slot is written, and a reader retries until it reads the same even number
+ * before and after the slot.  Java 8 offers no memory fences for mapped
+ * files, so this relies on the JIT and the processor not reordering the
+ * plain reads and writes of the mapping, which holds on x86 but is not
+ * guaranteed by the Java memory model.  A read that is torn despite this
+ * returns a mixed state of one job, which is at worst stale until its next
+ * poll.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class HostCoordinator implements AutoCloseable {
+	private static final long DEFAULT_POLL_INTERVAL = 5000;
+	/** how long the elected process keeps polling a job after it was last asked for */
+	private static final long WANTED_TTL = 600000;
+	/** how long the shared state of a finished job is used, since the job may be resubmitted from elsewhere */
+	private static final long DONE_TTL = 600000;
+
+	private static final int MAGIC = 0x424F4148; // "BOAH"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int SLOTS = 4096;
+	private static final int SLOT_SIZE = 40;
+	/** how many slots are checked for a job before the oldest one is reused */
+	private static final int MAX_PROBES = 16;
+	/** how many times a slot being written is read again before giving up on it */
+	private static final int MAX_READ_ATTEMPTS = 1000;
+
+	private static final CompileStatus[] COMPILE_STATUSES = CompileStatus.values();
+	private static final ExecutionStatus[] EXECUTION_STATUSES = ExecutionStatus.values();
+
+	// slot layout
+	private static final int SEQ = 0;
+	private static final int ID = 4;
+	private static final int DATASET = 8;
+	private static final int COMPILE = 12;
+	private static final int EXEC = 13;
+	private static final int FLAGS = 14;
+	private static final int DATE = 16;
+	private static final int UPDATED = 24;
+	private static final int WANTED = 32;
+
+	private static final byte DELETED = 1;
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	/** writes to a table are serialized across processes with a file lock, which is not reentrant within a JVM */
+	private static final Object WRITE_LOCK = new Object();
+
+	private final File dir;
+	private final File outputDir;
+	private final long pollInterval;
+	private final RandomAccessFile tableFile;
+	private final FileChannel tableChannel;
+	private final MappedByteBuffer table;
+	private final RandomAccessFile leaderFile;
+	private final SingleFlight<String, Boolean> downloads = new SingleFlight<String, Boolean>();
+
+	private BoaClient client = null;
+	private ScheduledExecutorService poller = null;
+	private ScheduledFuture<?> polling = null;
+	private volatile FileLock leaderLock = null;
+
+	private HostCoordinator(final File dir, final long pollInterval) throws IOException {
+		this.dir = dir;
+		this.outputDir = new File(dir, "outputs");
+		this.pollInterval = pollInterval;
+
+		// several processes may create it at once
+		if (!outputDir.mkdirs() && !outputDir.isDirectory())
+			throw new IOException("Could not create directory '" + outputDir + "'.");
+
+		this.leaderFile = new RandomAccessFile(new File(dir, "leader.lock"), "rw");
+		this.tableFile = new RandomAccessFile(new File(dir, "jobs.table"), "rw");
+		this.tableChannel = tableFile.getChannel();
+
+		synchronized (WRITE_LOCK) {
+			final FileLock lock = tableChannel.lock();
+			try {
+				final long size = HEADER_SIZE + (long)SLOTS * SLOT_SIZE;
+				final boolean fresh = tableFile.length() != size;
+				if (fresh)
+					tableFile.setLength(0);
+				tableFile.setLength(size);
+				this.table = tableChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				if (fresh || table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+					for (int i = 0; i < size; i += 8)
+						table.putLong(i, 0);
+					table.putInt(0, MAGIC);
+					table.putInt(4, VERSION);
+					table.putInt(8, SLOTS);
+				}
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Opens (or creates) a coordination directory, polling every 5 seconds.
+	 *
+	 * @param dir the directory shared by the processes
+	 * @return the coordinator
+	 * @throws BoaException if the directory could not be opened
+	 */
+	public static HostCoordinator open(final File dir) throws BoaException {
+		return open(dir, DEFAULT_POLL_INTERVAL);
+	}
+
+	/**
+	 * Opens (or creates) a coordination directory.
+	 *
+	 * @param dir the directory shared by the processes
+	 * @param pollInterval how often the elected process polls the server, in milliseconds
+	 * @return the coordinator
+	 * @throws BoaException if the directory could not be opened
+	 */
+	public static HostCoordinator open(final File dir, final long pollInterval) throws BoaException {
+		if (pollInterval <= 0)
+			throw new IllegalArgumentException("Argument 'pollInterval' must be positive.");
+		try {
+			return new HostCoordinator(dir, pollInterval);
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the directory shared by the processes.
+	 *
+	 * @return the coordination directory
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Returns whether this process is currently the one polling the server.
+	 *
+	 * @return <code>true</code> if this process was elected
+	 */
+	public boolean isLeader() {
+		return leaderLock != null;
+	}
+
+	/**
+	 * Stops taking part in the election, handing the polling over to another
+	 * process if this one was elected.
+	 */
+	@Override
+	public synchronized void close() {
+		if (polling != null) {
+			polling.cancel(false);
+			polling = null;
+		}
+		if (poller != null && client.getRuntime() == null)
+			poller.shutdownNow();
+
+		try {
+			final FileLock lock = leaderLock;
+			leaderLock = null;
+			if (lock != null)
+				lock.release();
+			leaderFile.close();
+			tableFile.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Starts taking part in the election on behalf of a client.
+	 */
+	synchronized void start(final BoaClient client) {
+		if (this.client != null) {
+			if (this.client != client)
+				throw new IllegalArgumentException("The coordinator is already used by another client.");
+			return;
+		}
+
+		this.client = client;
+		final BoaRuntime runtime = client.getRuntime();
+		poller = runtime != null ? client.getRuntimeExecutor() : Executors.newSingleThreadScheduledExecutor(OutputPrefetcher.daemonThreads("boa-host-poll"));
+		polling = poller.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, 0, pollInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Looks up jobs in the shared table.  Jobs found up to date are added to
+	 * <code>found</code>, and jobs known to be deleted to <code>deleted</code>.
+	 * The other jobs are marked as wanted, so the elected process polls them
+	 * from now on.
+	 *
+	 * @return the jobs that must be asked from the server
+	 */
+	Set<Integer> lookup(final Collection<Integer> ids, final Map<Integer, JobHandle> found, final Set<Integer> deleted) throws BoaException {
+		final Set<Integer> missing = new HashSet<Integer>();
+		final long now = System.currentTimeMillis();
+
+		for (final int id : ids) {
+			final int slot = find(id);
+			if (slot < 0) {
+				missing.add(id);
+				continue;
+			}
+
+			final int base = offset(slot);
+			int seq = 0, slotId = 0, dataset = 0;
+			byte compile = 0, exec = 0, flags = 0;
+			long date = 0, updated = 0;
+			boolean settled = false;
+			for (int attempt = 0; attempt < MAX_READ_ATTEMPTS && !settled; attempt++) {
+				if (attempt > 0)
+					Thread.yield();
+				seq = table.getInt(base + SEQ);
+				slotId = table.getInt(base + ID);
+				dataset = table.getInt(base + DATASET);
+				compile = table.get(base + COMPILE);
+				exec = table.get(base + EXEC);
+				flags = table.get(base + FLAGS);
+				date = table.getLong(base + DATE);
+				updated = table.getLong(base + UPDATED);
+				settled = (seq & 1) == 0 && seq == table.getInt(base + SEQ);
+			}
+
+			// a slot that never settles was left half written by a process that died
+			if (!settled || compile < 0 || compile >= COMPILE_STATUSES.length || exec < 0 || exec >= EXECUTION_STATUSES.length) {
+				missing.add(id);
+				continue;
+			}
+
+			final CompileStatus cs = COMPILE_STATUSES[compile];
+			final ExecutionStatus es = EXECUTION_STATUSES[exec];
+			if (slotId != id) {
+				// the slot was reused for another job while we read it
+				missing.add(id);
+			} else if ((flags & DELETED) != 0) {
+				deleted.add(id);
+			} else if (now - updated > (isDone(cs, es) ? DONE_TTL : 3 * pollInterval)) {
+				missing.add(id);
+			} else {
+				final InputHandle input = client.getDataset(dataset);
+				found.put(id, new JobHandle(client, id, date == NO_DATE ? null : new Date(date), input, cs, es));
+			}
+		}
+
+		if (!missing.isEmpty())
+			want(missing);
+		return missing;
+	}
+
+	/**
+	 * Shares jobs read from the server.
+	 */
+	void record(final Collection<JobHandle> jobs) {
+		if (jobs.isEmpty())
+			return;
+		final long now = System.currentTimeMillis();
+		try {
+			synchronized (WRITE_LOCK) {
+				final FileLock lock = tableChannel.lock(0, HEADER_SIZE, false);
+				try {
+					for (final JobHandle job : jobs) {
+						final int slot = claim(job.getId());
+						final int base = offset(slot);
+						final boolean same = table.getInt(base + ID) == job.getId();
+						beginWrite(base);
+						table.putInt(base + ID, job.getId());
+						table.putInt(base + DATASET, job.getDataset() == null ? -1 : job.getDataset().getId());
+						table.put(base + COMPILE, (byte)job.getCompilerStatus().ordinal());
+						table.put(base + EXEC, (byte)job.getExecutionStatus().ordinal());
+						table.put(base + FLAGS, (byte)0);
+						table.putLong(base + DATE, job.getDate() == null ? NO_DATE : job.getDate().getTime());
+						table.putLong(base + UPDATED, now);
+						if (!same)
+							table.putLong(base + WANTED, now);
+						endWrite(base);
+					}
+				} finally {
+					lock.release();
+				}
+			}
+		} catch (final IOException e) {
+			// the other processes ask the server themselves
+		}
+	}
+
+	/**
+	 * Makes other processes ask the server for a job again, such as after it
+	 * was resubmitted or deleted.
+	 */
+	void invalidate(final int id) {
+		try {
+			synchronized (WRITE_LOCK) {
+				final FileLock lock = tableChannel.lock(0, HEADER_SIZE, false);
+				try {
+					final int slot = find(id);
+					if (slot >= 0) {
+						final int base = offset(slot);
+						beginWrite(base);
+						table.put(base + COMPILE, (byte)CompileStatus.WAITING.ordinal());
+						table.put(base + EXEC, (byte)ExecutionStatus.WAITING.ordinal());
+						table.put(base + FLAGS, (byte)0);
+						table.putLong(base + UPDATED, 0);
+						endWrite(base);
+					}
+				} finally {
+					lock.release();
+				}
+			}
+		} catch (final IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Copies the output of a finished job from the shared directory into a
+	 * file, downloading it there first if no process on the host has yet.
+	 */
+	void getOutput(final JobHandle job, final File f, final DownloadScheduler.Priority priority) throws BoaException {
+		final String key = BoaClient.outputKey(job);
+		final File shared = new File(outputDir, key);
+
+		try {
+			if (!shared.exists())
+				downloads.execute(key, new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						download(job, shared, priority);
+						return true;
+					}
+				});
+			Files.copy(shared.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (final BoaException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	private void download(final JobHandle job, final File shared, final DownloadScheduler.Priority priority) throws BoaException, IOException {
+		try (final RandomAccessFile lockFile = new RandomAccessFile(new File(outputDir, shared.getName() + ".lock"), "rw")) {
+			final FileLock lock = lockFile.getChannel().lock();
+			try {
+				// another process may have downloaded it while we waited
+				if (shared.exists())
+					return;
+
+				final File tmp = new File(outputDir, shared.getName() + ".tmp");
+				try {
+					client.getOutput(job.getId(), tmp, priority, null);
+					Files.move(tmp.toPath(), shared.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					tmp.delete();
+				}
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	private void tick() {
+		if (leaderLock == null) {
+			try {
+				leaderLock = leaderFile.getChannel().tryLock();
+			} catch (final OverlappingFileLockException e) {
+				// another coordinator in this process was elected
+			} catch (final IOException e) {
+				// try again on the next tick
+			}
+			if (leaderLock == null)
+				return;
+		}
+
+		final List<Integer> wanted = wanted();
+		if (wanted.isEmpty())
+			return;
+
+		final Map<Integer, JobHandle> jobs;
+		try {
+			jobs = client.fetchJobs(wanted);
+		} catch (final BoaException e) {
+			// try again on the next tick
+			return;
+		}
+
+		record(jobs.values());
+		final List<Integer> gone = new ArrayList<Integer>();
+		for (final int id : wanted)
+			if (!jobs.containsKey(id))
+				gone.add(id);
+		if (!gone.isEmpty())
+			markDeleted(gone);
+	}
+
+	/**
+	 * Returns the jobs asked for recently that can still change.
+	 */
+	private List<Integer> wanted() {
+		final List<Integer> ids = new ArrayList<Integer>();
+		final long now = System.currentTimeMillis();
+		for (int slot = 0; slot < SLOTS; slot++) {
+			final int base = offset(slot);
+			final int id = table.getInt(base + ID);
+			if (id == 0 || (table.get(base + FLAGS) & DELETED) != 0)
+				continue;
+			if (now - table.getLong(base + WANTED) > WANTED_TTL)
+				continue;
+			final byte compile = table.get(base + COMPILE);
+			final byte exec = table.get(base + EXEC);
+			if (compile < 0 || compile >= COMPILE_STATUSES.length || exec < 0 || exec >= EXECUTION_STATUSES.length)
+				continue;
+			if (!isDone(COMPILE_STATUSES[compile], EXECUTION_STATUSES[exec]))
+				ids.add(id);
+		}
+		return ids;
+	}
+
+	private void want(final Set<Integer> ids) {
+		final long now = System.currentTimeMillis();
+		try {
+			synchronized (WRITE_LOCK) {
+				final FileLock lock = tableChannel.lock(0, HEADER_SIZE, false);
+				try {
+					for (final int id : ids) {
+						final int base = offset(claim(id));
+						beginWrite(base);
+						if (table.getInt(base + ID) != id) {
+							table.putInt(base + ID, id);
+							table.putInt(base + DATASET, -1);
+							table.put(base + COMPILE, (byte)CompileStatus.WAITING.ordinal());
+							table.put(base + EXEC, (byte)ExecutionStatus.WAITING.ordinal());
+							table.put(base + FLAGS, (byte)0);
+							table.putLong(base + DATE, NO_DATE);
+							table.putLong(base + UPDATED, 0);
+						}
+						table.putLong(base + WANTED, now);
+						endWrite(base);
+					}
+				} finally {
+					lock.release();
+				}
+			}
+		} catch (final IOException e) {
+			// this process keeps asking the server itself
+		}
+	}
+
+	private void markDeleted(final List<Integer> ids) {
+		final long now = System.currentTimeMillis();
+		try {
+			synchronized (WRITE_LOCK) {
+				final FileLock lock = tableChannel.lock(0, HEADER_SIZE, false);
+				try {
+					for (final int id : ids) {
+						final int slot = find(id);
+						if (slot < 0)
+							continue;
+						final int base = offset(slot);
+						beginWrite(base);
+						table.put(base + FLAGS, DELETED);
+						table.putLong(base + UPDATED, now);
+						endWrite(base);
+					}
+				} finally {
+					lock.release();
+				}
+			}
+		} catch (final IOException e) {
+			// the other processes find out from the server
+		}
+	}
+
+	/**
+	 * Returns the slot holding a job, or -1 if it is not in the table.
+	 */
+	private int find(final int id) {
+		final int start = (id * 0x9E3779B9 >>> 1) % SLOTS;
+		for (int i = 0; i < MAX_PROBES; i++) {
+			final int slot = (start + i) % SLOTS;
+			final int found = table.getInt(offset(slot) + ID);
+			if (found == id)
+				return slot;
+			if (found == 0)
+				return -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the slot for a job: the slot already holding it, else an empty
+	 * slot, else the least recently wanted slot.  Must hold the write lock.
+	 */
+	private int claim(final int id) {
+		final int start = (id * 0x9E3779B9 >>> 1) % SLOTS;
+		int oldest = start;
+		for (int i = 0; i < MAX_PROBES; i++) {
+			final int slot = (start + i) % SLOTS;
+			final int base = offset(slot);
+			final int found = table.getInt(base + ID);
+			if (found == id || found == 0)
+				return slot;
+			if (table.getLong(base + WANTED) < table.getLong(offset(oldest) + WANTED))
+				oldest = slot;
+		}
+		return oldest;
+	}
+
+	/**
+	 * Marks a slot as being written: readers retry while a slot's sequence
+	 * number is odd or has changed.  Must hold the write lock.  The number is
+	 * moved to the next odd value even if it is already odd, which happens
+	 * when a writer died in the middle of a write, so the slot settles again
+	 * after this write.
+	 */
+	private void beginWrite(final int base) {
+		table.putInt(base + SEQ, (table.getInt(base + SEQ) + 1) | 1);
+	}
+
+	/**
+	 * Marks a slot as written, moving its sequence number to the next even
+	 * value.  Must hold the write lock.
+	 */
+	private void endWrite(final int base) {
+		table.putInt(base + SEQ, (table.getInt(base + SEQ) | 1) + 1);
+	}
+
+	private static int offset(final int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private static boolean isDone(final CompileStatus cs, final ExecutionStatus es) {
+		return cs == CompileStatus.ERROR || es == ExecutionStatus.FINISHED || es == ExecutionStatus.ERROR;
+	}
+}
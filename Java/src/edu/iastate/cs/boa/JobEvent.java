@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+/**
+ * A change in the state of a job (see {@link BoaClient#jobEvents()}).
+ *
+ * @author rdyer
+ */
+public final class JobEvent {
+	/**
+	 * The kind of change.
+	 */
+	public enum Type {
+		/** a new job was submitted */
+		SUBMITTED,
+		/** the job compiled successfully */
+		COMPILED,
+		/** the job started running */
+		RUNNING,
+		/** the job finished running */
+		FINISHED,
+		/** the job failed to compile or run */
+		ERROR
+	}
+
+	private final Type type;
+	/**
+	 * Returns the kind of change.
+	 *
+	 * @return the event's type
+	 */
+	public final Type getType() { return type; }
+
+	private final JobHandle job;
+	/**
+	 * Returns the job, as of the change.
+	 *
+	 * @return the job
+	 */
+	public final JobHandle getJob() { return job; }
+
+	JobEvent(final Type type, final JobHandle job) {
+		this.type = type;
+		this.job = job;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public final String toString() {
+		return type + " " + job.getId();
+	}
+}
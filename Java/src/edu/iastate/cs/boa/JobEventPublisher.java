@@ -0,0 +1,340 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes changes in the state of a user's jobs (see
+ * {@link BoaClient#jobEvents()}).
+ *
+ * <p>
+ * While anyone is subscribed, a single loop reads the user's most recent
+ * jobs and compares them to their last known states, and each change is
+ * sent to every subscriber.  Jobs that exist when the loop starts produce
+ * events only for later changes.  Only the most recent jobs are watched, so
+ * a job pushed out of that window by newer jobs is no longer followed.
+ * </p>
+ *
+ * <p>
+ * Subscribers follow {@link Flow}, including its backpressure: a subscriber
+ * receives only as many events as it has requested.  Up to 1024 events are
+ * kept for a subscriber that has not requested more; past that, it is sent
+ * an error and unsubscribed.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class JobEventPublisher implements Flow.Publisher<JobEvent>, AutoCloseable {
+	private static final int MAX_BUFFERED = 1024;
+
+	private final BoaClient client;
+	private final long pollInterval;
+	private final int window;
+	private final ScheduledExecutorService poller;
+	private final List<Sub> subscribers = new CopyOnWriteArrayList<Sub>();
+
+	/** the last known state of each watched job, packed as compile status * 4 + execution status */
+	private Map<Integer, Byte> states = null;
+	private ScheduledFuture<?> polling = null;
+	private boolean closed = false;
+
+	JobEventPublisher(final BoaClient client, final long pollInterval, final int window) {
+		this.client = client;
+		this.pollInterval = pollInterval;
+		this.window = window;
+		final BoaRuntime runtime = client.getRuntime();
+		this.poller = runtime != null ? client.getRuntimeExecutor() : Executors.newSingleThreadScheduledExecutor(OutputPrefetcher.daemonThreads("boa-job-events"));
+	}
+
+	/**
+	 * Adds a subscriber.  Its {@link Flow.Subscriber#onSubscribe(Flow.Subscription)} is
+	 * called right away, and it receives events once it requests them.
+	 *
+	 * @param subscriber the subscriber
+	 */
+	@Override
+	public void subscribe(final Flow.Subscriber<? super JobEvent> subscriber) {
+		final Sub sub = new Sub(subscriber);
+		subscriber.onSubscribe(sub);
+
+		synchronized (this) {
+			if (closed) {
+				sub.complete();
+				return;
+			}
+			subscribers.add(sub);
+			if (polling == null)
+				polling = poller.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						poll();
+					}
+				}, 0, pollInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops polling and completes every subscription once its buffered
+	 * events are delivered.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			stopPolling();
+			if (client.getRuntime() == null)
+				poller.shutdownNow();
+		}
+		for (final Sub sub : subscribers)
+			sub.complete();
+		subscribers.clear();
+	}
+
+	private synchronized void unsubscribe(final Sub sub) {
+		subscribers.remove(sub);
+		if (subscribers.isEmpty())
+			stopPolling();
+	}
+
+	private void stopPolling() {
+		if (polling != null) {
+			polling.cancel(false);
+			polling = null;
+		}
+		// the next subscriber starts from a fresh view
+		states = null;
+	}
+
+	private void poll() {
+		final List<JobHandle> jobs;
+		try {
+			jobs = client.getJobList(0, window);
+		} catch (final BoaException e) {
+			// try again on the next poll
+			return;
+		}
+
+		final List<JobEvent> events = new ArrayList<JobEvent>();
+		synchronized (this) {
+			if (polling == null)
+				return;
+
+			final Map<Integer, Byte> old = states;
+			final Map<Integer, Byte> current = new HashMap<Integer, Byte>(jobs.size() * 2);
+			int newest = 0;
+			if (old != null)
+				for (final Integer id : old.keySet())
+					newest = Math.max(newest, id);
+
+			// jobs are listed newest first, but events are sent oldest first
+			for (int i = jobs.size() - 1; i >= 0; i--) {
+				final JobHandle job = jobs.get(i);
+				final byte state = pack(job.getCompilerStatus(), job.getExecutionStatus());
+				current.put(job.getId(), state);
+				if (old == null)
+					continue;
+
+				final Byte before = old.get(job.getId());
+				// an older job moved into the window, since a newer one was deleted
+				if (before == null && job.getId() < newest)
+					continue;
+				if (before == null || before != state)
+					diff(before, state, job, events);
+			}
+			states = current;
+		}
+
+		for (final JobEvent event : events)
+			for (final Sub sub : subscribers)
+				sub.offer(event);
+	}
+
+	/**
+	 * Adds the events between two states of a job, in the order they happened.
+	 *
+	 * @param before the job's last known state, or <code>null</code> for a new job
+	 */
+	private static void diff(final Byte before, final byte after, final JobHandle job, final List<JobEvent> events) {
+		final CompileStatus c1 = CompileStatus.values()[after >> 2];
+		final ExecutionStatus e1 = ExecutionStatus.values()[after & 3];
+		CompileStatus c0 = CompileStatus.WAITING;
+		ExecutionStatus e0 = ExecutionStatus.WAITING;
+
+		if (before != null) {
+			c0 = CompileStatus.values()[before >> 2];
+			e0 = ExecutionStatus.values()[before & 3];
+		}
+
+		// a new job, or a job that was resubmitted and went back to waiting
+		if (before == null || c1.ordinal() < c0.ordinal() || e1.ordinal() < e0.ordinal()) {
+			events.add(new JobEvent(JobEvent.Type.SUBMITTED, job));
+			c0 = CompileStatus.WAITING;
+			e0 = ExecutionStatus.WAITING;
+		}
+
+		if (c1 != c0) {
+			if (c1 == CompileStatus.ERROR) {
+				events.add(new JobEvent(JobEvent.Type.ERROR, job));
+				return;
+			}
+			if (c1 == CompileStatus.FINISHED)
+				events.add(new JobEvent(JobEvent.Type.COMPILED, job));
+		}
+
+		if (e1 != e0) {
+			if (e0 == ExecutionStatus.WAITING && (e1 == ExecutionStatus.RUNNING || e1 == ExecutionStatus.FINISHED))
+				events.add(new JobEvent(JobEvent.Type.RUNNING, job));
+			if (e1 == ExecutionStatus.FINISHED)
+				events.add(new JobEvent(JobEvent.Type.FINISHED, job));
+			else if (e1 == ExecutionStatus.ERROR)
+				events.add(new JobEvent(JobEvent.Type.ERROR, job));
+		}
+	}
+
+	private static byte pack(final CompileStatus c, final ExecutionStatus e) {
+		return (byte)(c.ordinal() << 2 | e.ordinal());
+	}
+
+	/**
+	 * One subscriber's subscription, with its demand and buffered events.
+	 */
+	private final class Sub implements Flow.Subscription {
+		private final Flow.Subscriber<? super JobEvent> subscriber;
+		private final ArrayDeque<JobEvent> buffer = new ArrayDeque<JobEvent>();
+		private long demand = 0;
+		private boolean draining = false;
+		private boolean cancelled = false;
+		private boolean overflowed = false;
+		private boolean done = false;
+
+		Sub(final Flow.Subscriber<? super JobEvent> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(final long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("Argument 'n' must be positive."));
+				return;
+			}
+			synchronized (this) {
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				cancelled = true;
+				buffer.clear();
+			}
+			unsubscribe(this);
+		}
+
+		void offer(final JobEvent event) {
+			synchronized (this) {
+				if (cancelled || done)
+					return;
+				if (buffer.size() >= MAX_BUFFERED)
+					overflowed = true;
+				else
+					buffer.add(event);
+			}
+			drain();
+		}
+
+		void complete() {
+			synchronized (this) {
+				done = true;
+			}
+			drain();
+		}
+
+		private void fail(final Throwable t) {
+			synchronized (this) {
+				if (cancelled)
+					return;
+				cancelled = true;
+				buffer.clear();
+			}
+			unsubscribe(this);
+			subscriber.onError(t);
+		}
+
+		/**
+		 * Sends buffered events while there is demand.  Only one thread sends
+		 * at a time; a thread that finds another sending leaves the work to it.
+		 */
+		private void drain() {
+			synchronized (this) {
+				if (draining)
+					return;
+				draining = true;
+			}
+
+			for (;;) {
+				final JobEvent event;
+				synchronized (this) {
+					if (cancelled) {
+						draining = false;
+						return;
+					}
+					if (overflowed) {
+						draining = false;
+						break;
+					}
+					if (buffer.isEmpty() && done) {
+						cancelled = true;
+						draining = false;
+						subscriber.onComplete();
+						return;
+					}
+					if (buffer.isEmpty() || demand == 0) {
+						draining = false;
+						return;
+					}
+					event = buffer.poll();
+					if (demand != Long.MAX_VALUE)
+						demand--;
+				}
+
+				try {
+					subscriber.onNext(event);
+				} catch (final RuntimeException e) {
+					synchronized (this) {
+						draining = false;
+					}
+					fail(e);
+					return;
+				}
+			}
+
+			fail(new BoaException("Subscriber fell more than " + MAX_BUFFERED + " events behind."));
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handle to a group of jobs running the same query on several datasets
+ * (see {@link BoaClient#queryAll(String, java.util.function.Predicate)}).
+ *
+ * <p>
+ * All jobs are submitted concurrently, and all unfinished jobs are checked
+ * together in the background.  Jobs are handed out by {@link #take()} in the
+ * order they finish, so results can be processed while slower jobs are still
+ * running.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class JobGroup implements AutoCloseable {
+	private static final int MAX_SUBMITTERS = 8;
+
+	private final BoaClient client;
+	private final ExecutorService submitter;
+	private final ScheduledExecutorService poller;
+	/** whether the threads belong to the client's runtime, and so must not be shut down */
+	private final boolean shared;
+	private final ScheduledFuture<?> polling;
+
+	private final List<JobHandle> jobs = Collections.synchronizedList(new ArrayList<JobHandle>());
+	private final Map<InputHandle, BoaException> errors = new ConcurrentHashMap<InputHandle, BoaException>();
+	private final Map<Integer, JobHandle> running = new ConcurrentHashMap<Integer, JobHandle>();
+	private final Queue<JobHandle> finished = new ArrayDeque<JobHandle>();
+	private int outstanding;
+	private boolean closed = false;
+
+	JobGroup(final BoaClient client, final String query, final List<InputHandle> datasets, final long pollInterval) {
+		this.client = client;
+		this.outstanding = datasets.size();
+
+		final BoaRuntime runtime = client.getRuntime();
+		this.shared = runtime != null;
+		if (shared) {
+			this.submitter = client.getRuntimeExecutor();
+			this.poller = client.getRuntimeExecutor();
+		} else {
+			this.submitter = Executors.newFixedThreadPool(Math.max(1, Math.min(datasets.size(), MAX_SUBMITTERS)), OutputPrefetcher.daemonThreads("boa-group-submit"));
+			this.poller = Executors.newSingleThreadScheduledExecutor(OutputPrefetcher.daemonThreads("boa-group-poll"));
+		}
+
+		// scheduled before any submit can complete the group and shut the poller down
+		polling = poller.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+
+		for (final InputHandle dataset : datasets)
+			submitter.execute(new Runnable() {
+				@Override
+				public void run() {
+					submit(query, dataset);
+				}
+			});
+		if (!shared)
+			submitter.shutdown();
+
+		// there may be no datasets at all
+		synchronized (this) {
+			if (outstanding == 0)
+				stopPolling();
+		}
+	}
+
+	/**
+	 * Returns the jobs submitted so far, in submission order.
+	 *
+	 * @return the submitted jobs
+	 */
+	public List<JobHandle> getJobs() {
+		synchronized (jobs) {
+			return new ArrayList<JobHandle>(jobs);
+		}
+	}
+
+	/**
+	 * Returns the datasets a job could not be submitted to (or whose job was
+	 * deleted while running), with the reason.
+	 *
+	 * @return the failed datasets
+	 */
+	public Map<InputHandle, BoaException> getErrors() {
+		return new HashMap<InputHandle, BoaException>(errors);
+	}
+
+	/**
+	 * Returns the next job to finish, waiting if none has finished yet.  The
+	 * job's execution status is either finished or error.
+	 *
+	 * @return the next finished job, or <code>null</code> once every job was returned (or the group was closed)
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized JobHandle take() throws InterruptedException {
+		while (finished.isEmpty() && outstanding > 0 && !closed)
+			wait();
+		return finished.poll();
+	}
+
+	/**
+	 * Returns the next job to finish, waiting up to the given time if none
+	 * has finished yet.
+	 *
+	 * @param timeout how long to wait
+	 * @param unit the unit of the timeout
+	 * @return the next finished job, or <code>null</code> if none finished in time or all were returned
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized JobHandle poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (finished.isEmpty() && outstanding > 0 && !closed) {
+			final long left = deadline - System.nanoTime();
+			if (left <= 0)
+				break;
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return finished.poll();
+	}
+
+	/**
+	 * Waits until every job has finished (or failed to submit).
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void await() throws InterruptedException {
+		while (outstanding > 0 && !closed)
+			wait();
+	}
+
+	/**
+	 * Returns whether every job has finished (or failed to submit).
+	 *
+	 * @return <code>true</code> if all jobs are done
+	 */
+	public synchronized boolean isDone() {
+		return outstanding == 0;
+	}
+
+	/**
+	 * Stops checking on the jobs.  The jobs themselves keep running on the
+	 * server.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		polling.cancel(false);
+		if (!shared) {
+			submitter.shutdownNow();
+			poller.shutdownNow();
+		}
+		notifyAll();
+	}
+
+	private void submit(final String query, final InputHandle dataset) {
+		synchronized (this) {
+			if (closed)
+				return;
+		}
+
+		try {
+			final JobHandle job = client.query(query, dataset);
+			jobs.add(job);
+			if (isDone(job))
+				complete(job);
+			else
+				running.put(job.getId(), job);
+		} catch (final BoaException e) {
+			errors.put(dataset, e);
+			complete(null);
+		}
+	}
+
+	private void poll() {
+		if (running.isEmpty())
+			return;
+
+		final Map<Integer, JobHandle> latest;
+		try {
+			latest = client.pollJobs(new ArrayList<Integer>(running.keySet()));
+		} catch (final BoaException e) {
+			// try again on the next poll
+			return;
+		}
+
+		for (final JobHandle old : new ArrayList<JobHandle>(running.values())) {
+			final JobHandle job = latest.get(old.getId());
+			if (job == null) {
+				running.remove(old.getId());
+				errors.put(old.getDataset(), new BoaException("Job " + old.getId() + " no longer exists."));
+				complete(null);
+			} else if (isDone(job)) {
+				running.remove(job.getId());
+				complete(job);
+			}
+		}
+	}
+
+	private synchronized void complete(final JobHandle job) {
+		if (job != null)
+			finished.add(job);
+		if (--outstanding == 0)
+			stopPolling();
+		notifyAll();
+	}
+
+	private void stopPolling() {
+		if (polling != null)
+			polling.cancel(false);
+		if (!shared)
+			poller.shutdown();
+	}
+
+	private static boolean isDone(final JobHandle job) {
+		return job.getCompilerStatus() == CompileStatus.ERROR
+			|| job.getExecutionStatus() == ExecutionStatus.FINISHED
+			|| job.getExecutionStatus() == ExecutionStatus.ERROR;
+	}
+}
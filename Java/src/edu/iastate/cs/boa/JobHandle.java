@@ -17,11 +17,18 @@
 package edu.iastate.cs.boa;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
@@ -30,12 +37,24 @@ import java.util.UUID;
  * Represents a handle to a job.  Can not be created, only returned
  * from Boa API calls.
  *
+ * <p>
+ * A handle can be sent to another process, either with Java serialization or
+ * in a compact binary form (see {@link #toBytes()}).  Neither form includes
+ * the client, so on the receiving side the handle must be attached to a
+ * local client (see {@link #attach(BoaClient)}) before calling methods that
+ * use the API.
+ * </p>
+ *
  * @author rdyer
  */
 public final class JobHandle implements Serializable {
 	private static final long serialVersionUID = 6601705556435705094L;
 
-	private final BoaClient client;
+	/** flag bits in the first byte of the binary form, after the statuses */
+	private static final int HAS_DATASET = 0x10;
+	private static final int HAS_DATE = 0x20;
+
+	private transient BoaClient client;
 
 	private final int id;
 	/**
@@ -53,7 +72,7 @@ public final class JobHandle implements Serializable {
 	 */
 	public final Date getDate() { return date; }
 
-	private final InputHandle dataset;
+	private InputHandle dataset;
 	/**
 	 * Returns the input dataset the job queried.
 	 *
@@ -92,6 +111,140 @@ public final class JobHandle implements Serializable {
 		return id + " (" + date + ") - " + dataset + " - compiler_status(" + compilerStatus + ") execution_status(" + execStatus + ")";
 	}
 
+	/**
+	 * Attaches the handle to a client, such as after receiving it from
+	 * another process.  The handle's dataset is resolved through the client's
+	 * dataset registry, if it was not already.
+	 *
+	 * @param client the client to use for API calls on the job
+	 * @return this handle
+	 * @throws BoaException if there was a problem reading the datasets from the server
+	 */
+	public JobHandle attach(final BoaClient client) throws BoaException {
+		if (dataset != null && dataset.getName() == null) {
+			final InputHandle input = client.getDataset(dataset.getId());
+			if (input != null)
+				dataset = input;
+		}
+		this.client = client;
+		return this;
+	}
+
+	/**
+	 * Returns whether the handle is attached to a client.
+	 *
+	 * @return <code>true</code> if API calls can be made on the job
+	 */
+	public boolean isAttached() {
+		return client != null;
+	}
+
+	/**
+	 * Encodes the handle in a compact binary form, which holds the job's id,
+	 * dataset id, submission date and statuses (usually under 16 bytes).
+	 *
+	 * @return the encoded handle
+	 * @see #fromBytes(byte[], BoaClient)
+	 */
+	public byte[] toBytes() {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+		try {
+			writeTo(out);
+		} catch (final IOException e) {
+			// can not happen
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes the handle in its compact binary form (see {@link #toBytes()}).
+	 *
+	 * @param out where to write the handle
+	 * @throws IOException if there was a problem writing
+	 * @see #readFrom(DataInput, BoaClient)
+	 */
+	public void writeTo(final OutputStream out) throws IOException {
+		int flags = compilerStatus.ordinal() << 2 | execStatus.ordinal();
+		if (dataset != null)
+			flags |= HAS_DATASET;
+		if (date != null)
+			flags |= HAS_DATE;
+
+		out.write(flags);
+		Varints.writeVarLong(out, id & 0xFFFFFFFFL);
+		if (dataset != null)
+			Varints.writeVarLong(out, dataset.getId() & 0xFFFFFFFFL);
+		if (date != null)
+			Varints.writeVarLong(out, Varints.zigzag(date.getTime()));
+	}
+
+	/**
+	 * Decodes a handle from its compact binary form.
+	 *
+	 * @param bytes the encoded handle
+	 * @param client the client to attach the handle to, or <code>null</code> to leave it detached
+	 * @return the handle
+	 * @throws BoaException if the bytes are not an encoded handle, or there was a problem reading the datasets from the server
+	 * @see #toBytes()
+	 */
+	public static JobHandle fromBytes(final byte[] bytes, final BoaClient client) throws BoaException {
+		final ByteBuffer buf = ByteBuffer.wrap(bytes);
+		try {
+			final int flags = checkFlags(buf.get());
+			final int id = Varints.readVarInt(buf);
+			final int datasetId = (flags & HAS_DATASET) != 0 ? Varints.readVarInt(buf) : -1;
+			final long time = (flags & HAS_DATE) != 0 ? Varints.unzigzag(Varints.readVarLong(buf)) : 0;
+			return decode(flags, id, datasetId, time, client);
+		} catch (final BufferUnderflowException e) {
+			throw new BoaException("Truncated job handle.", e);
+		} catch (final IllegalStateException e) {
+			throw new BoaException("Invalid job handle.", e);
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads a handle written by {@link #writeTo(OutputStream)}.
+	 *
+	 * @param in where to read the handle from
+	 * @param client the client to attach the handle to, or <code>null</code> to leave it detached
+	 * @return the handle
+	 * @throws IOException if there was a problem reading, or the input is not an encoded handle
+	 * @throws BoaException if there was a problem reading the datasets from the server
+	 */
+	public static JobHandle readFrom(final DataInput in, final BoaClient client) throws IOException, BoaException {
+		final int flags = checkFlags(in.readByte());
+		final int id = Varints.readVarInt(in);
+		final int datasetId = (flags & HAS_DATASET) != 0 ? Varints.readVarInt(in) : -1;
+		final long time = (flags & HAS_DATE) != 0 ? Varints.unzigzag(Varints.readVarLong(in)) : 0;
+		return decode(flags, id, datasetId, time, client);
+	}
+
+	private static int checkFlags(final byte b) throws IOException {
+		final int flags = b & 0xFF;
+		if ((flags & ~(HAS_DATASET | HAS_DATE | 0xF)) != 0)
+			throw new IOException("Unknown job handle encoding.");
+		return flags;
+	}
+
+	private static JobHandle decode(final int flags, final int id, final int datasetId, final long time, final BoaClient client) throws BoaException {
+		final InputHandle dataset = (flags & HAS_DATASET) != 0 ? new InputHandle(datasetId, null) : null;
+		final JobHandle job = new JobHandle(null, id,
+				(flags & HAS_DATE) != 0 ? new Date(time) : null,
+				dataset,
+				CompileStatus.values()[flags >> 2 & 3],
+				ExecutionStatus.values()[flags & 3]);
+		return client != null ? job.attach(client) : job;
+	}
+
+	private BoaClient client() throws NotLoggedInException {
+		final BoaClient c = client;
+		if (c == null)
+			throw new NotLoggedInException();
+		return c;
+	}
+
 	/**
 	 * Stops the job, if it is running.
 	 *
@@ -99,7 +252,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public void stop() throws BoaException, NotLoggedInException {
-		client.stop(id);
+		client().stop(id);
 	}
 
 	/**
@@ -109,7 +262,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public void resubmit() throws BoaException, NotLoggedInException {
-		client.resubmit(id);
+		client().resubmit(id);
 	}
 
 	/**
@@ -119,7 +272,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public void delete() throws BoaException, NotLoggedInException {
-		client.delete(id);
+		client().delete(id);
 	}
 
 	/**
@@ -130,7 +283,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public void setPublic(final boolean isPublic) throws BoaException, NotLoggedInException {
-		client.setPublic(id, isPublic);
+		client().setPublic(id, isPublic);
 	}
 
 	/**
@@ -141,7 +294,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public boolean getPublic() throws BoaException, NotLoggedInException {
-		return client.getPublic(id);
+		return client().getPublic(id);
 	}
 
 	/**
@@ -152,7 +305,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public URL getUrl() throws BoaException, NotLoggedInException {
-		return client.getUrl(id);
+		return client().getUrl(id);
 	}
 
 	/**
@@ -167,7 +320,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public URL getPublicUrl() throws BoaException, NotLoggedInException {
-		return client.getPublicUrl(id);
+		return client().getPublicUrl(id);
 	}
 
 	/**
@@ -178,7 +331,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public List<String> getCompilerErrors() throws BoaException, NotLoggedInException {
-		return client.getCompilerErrors(id);
+		return client().getCompilerErrors(id);
 	}
 
 	/**
@@ -189,7 +342,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public String getSource() throws BoaException, NotLoggedInException {
-		return client.getSource(id);
+		return client().getSource(id);
 	}
 
 	/**
@@ -206,7 +359,7 @@ public final class JobHandle implements Serializable {
 		StringBuffer sb = new StringBuffer();
 		BufferedReader br = null;
 		try {
-			br = new BufferedReader(new FileReader(f));
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
 
 			char[] buf = new char[4096];
 			int len = 0;
@@ -240,7 +393,22 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public void getOutput(final File f) throws BoaException, NotLoggedInException {
-		client.getOutput(id, f);
+		client().getOutput(this, f);
+	}
+
+	/**
+	 * Store the output for this job into a {@link java.io.File}, if it
+	 * finished successfully and has output, and return a view for streaming
+	 * over its records.
+	 *
+	 * @param f where to store the file
+	 * @return a {@link JobOutput} over the stored output
+	 * @throws BoaException if the command fails for any reason
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public JobOutput getParsedOutput(final File f) throws BoaException, NotLoggedInException {
+		getOutput(f);
+		return new JobOutput(f);
 	}
 
 	/**
@@ -253,7 +421,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public String getOutput(final long start, final long len) throws BoaException, NotLoggedInException {
-		return client.getOutput(id, start, len);
+		return client().getOutput(id, start, len);
 	}
 
 	/**
@@ -264,7 +432,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public int getOutputSize() throws BoaException, NotLoggedInException {
-		return client.getOutputSize(id);
+		return client().getOutputSize(id);
 	}
 
 	/**
@@ -274,7 +442,7 @@ public final class JobHandle implements Serializable {
 	 * @throws NotLoggedInException if not already logged in to the API
 	 */
 	public void refresh() throws BoaException, NotLoggedInException {
-		final JobHandle j = client.getJob(id);
+		final JobHandle j = client().getJob(id);
 
 		this.date = j.getDate();
 		this.compilerStatus = j.getCompilerStatus();
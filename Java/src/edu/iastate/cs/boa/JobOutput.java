@@ -0,0 +1,326 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * Provides streaming access to a job's output that was stored into a local
+ * {@link java.io.File} (see {@link JobHandle#getOutput(java.io.File)}).
+ *
+ * <p>
+ * None of the operations load the whole output into memory, so they can be
+ * used on very large outputs.
+ * </p>
+ *
+ * <p>
+ * Example usage:
+ * </p>
+ *
+ * <pre>
+ * final JobOutput output = job.getParsedOutput(new File("output.txt"));
+ *
+ * // print the 10 records with the largest values
+ * for (final OutputRecord r : output.topK(10, Collections.reverseOrder(OutputRecord.BY_NUMERIC_VALUE)))
+ *   System.out.println(r);
+ * </pre>
+ *
+ * @author rdyer
+ */
+public class JobOutput {
+	static final Function<OutputRecord, String> ENCODER = new Function<OutputRecord, String>() {
+		@Override
+		public String apply(final OutputRecord r) {
+			return r.toString();
+		}
+	};
+
+	static final Function<String, OutputRecord> DECODER = new Function<String, OutputRecord>() {
+		@Override
+		public OutputRecord apply(final String line) {
+			return Util.parseRecord(line);
+		}
+	};
+
+	private final File file;
+	/**
+	 * Returns the file holding the output.
+	 *
+	 * @return the output's file
+	 */
+	public final File getFile() { return file; }
+
+	/**
+	 * Create a view over a job's output that was stored into a file.
+	 *
+	 * @param file the file holding the job's output
+	 */
+	public JobOutput(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Streams over the records of the output, in the order they appear.
+	 *
+	 * @return a {@link CloseableIterator} over the output's records
+	 * @throws BoaException if the output could not be read
+	 */
+	public CloseableIterator<OutputRecord> records() throws BoaException {
+		try {
+			return new LineIterator<OutputRecord>(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+				@Override
+				protected OutputRecord convert(final String line) {
+					return Util.parseRecord(line);
+				}
+			};
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the first <code>n</code> records of the output, according to
+	 * the given ordering.  Only <code>n</code> records are ever held in memory.
+	 *
+	 * <p>
+	 * To get the <code>n</code> records with the largest values, use
+	 * <code>topK(n, Collections.reverseOrder(OutputRecord.BY_NUMERIC_VALUE))</code>.
+	 * </p>
+	 *
+	 * @param n the number of records to return
+	 * @param comparator the ordering of the records
+	 * @return a sorted {@link java.util.List} of (at most) <code>n</code> records
+	 * @throws BoaException if the output could not be read
+	 */
+	public List<OutputRecord> topK(final int n, final Comparator<? super OutputRecord> comparator) throws BoaException {
+		if (n < 1)
+			return new ArrayList<OutputRecord>();
+
+		// a max-heap holding the best n records seen so far
+		final PriorityQueue<OutputRecord> heap = new PriorityQueue<OutputRecord>(n + 1, Collections.reverseOrder(comparator));
+
+		try (final CloseableIterator<OutputRecord> it = records()) {
+			while (it.hasNext()) {
+				final OutputRecord r = it.next();
+				if (heap.size() < n) {
+					heap.add(r);
+				} else if (comparator.compare(r, heap.peek()) < 0) {
+					heap.poll();
+					heap.add(r);
+				}
+			}
+		} catch (final UncheckedIOException e) {
+			throw new BoaException(e.getMessage(), e.getCause());
+		}
+
+		final List<OutputRecord> l = new ArrayList<OutputRecord>(heap);
+		Collections.sort(l, comparator);
+		return l;
+	}
+
+	/**
+	 * Streams over all records of the output, according to the given
+	 * ordering.  Uses an external merge sort with a 64MB memory budget,
+	 * spilling to the system's temporary directory.
+	 *
+	 * @param comparator the ordering of the records
+	 * @return a {@link CloseableIterator} over the output's records, in sorted order
+	 * @throws BoaException if the output could not be read or sorted
+	 */
+	public CloseableIterator<OutputRecord> sorted(final Comparator<? super OutputRecord> comparator) throws BoaException {
+		return sorted(comparator, ExternalSorter.DEFAULT_MAX_MEMORY, null);
+	}
+
+	/**
+	 * Streams over all records of the output, according to the given
+	 * ordering.  Uses an external merge sort that keeps at most (roughly)
+	 * <code>maxMemory</code> bytes of records in memory, spilling sorted runs
+	 * into <code>tmpDir</code>.  Spill files are deleted when the returned
+	 * iterator is closed.
+	 *
+	 * @param comparator the ordering of the records
+	 * @param maxMemory the memory budget for sorting, in bytes
+	 * @param tmpDir the directory to store spill files in, or <code>null</code> for the system default
+	 * @return a {@link CloseableIterator} over the output's records, in sorted order
+	 * @throws BoaException if the output could not be read or sorted
+	 */
+	public CloseableIterator<OutputRecord> sorted(final Comparator<? super OutputRecord> comparator, final long maxMemory, final File tmpDir) throws BoaException {
+		final ExternalSorter<OutputRecord> sorter = new ExternalSorter<OutputRecord>(comparator, ENCODER, DECODER, maxMemory, tmpDir);
+
+		try (final CloseableIterator<OutputRecord> it = records()) {
+			while (it.hasNext())
+				sorter.add(it.next());
+			return sorter.sort();
+		} catch (final UncheckedIOException e) {
+			sorter.discard();
+			throw new BoaException(e.getMessage(), e.getCause());
+		} catch (final IOException e) {
+			sorter.discard();
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Checks if the records of the output are already in the given order.
+	 *
+	 * @param comparator the ordering of the records
+	 * @return <code>true</code> if the records are in order
+	 * @throws BoaException if the output could not be read
+	 */
+	public boolean isSorted(final Comparator<? super OutputRecord> comparator) throws BoaException {
+		try (final CloseableIterator<OutputRecord> it = records()) {
+			OutputRecord prev = null;
+			while (it.hasNext()) {
+				final OutputRecord r = it.next();
+				if (prev != null && comparator.compare(prev, r) > 0)
+					return false;
+				prev = r;
+			}
+			return true;
+		} catch (final UncheckedIOException e) {
+			throw new BoaException(e.getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Streams over the differences between two outputs, in key order.  See
+	 * {@link #diff(JobOutput, JobOutput, long, java.io.File)}.
+	 *
+	 * @param oldOutput the old output
+	 * @param newOutput the new output
+	 * @return a {@link CloseableIterator} over the differences
+	 * @throws BoaException if either output could not be read or sorted
+	 */
+	public static CloseableIterator<OutputDiff> diff(final JobOutput oldOutput, final JobOutput newOutput) throws BoaException {
+		return diff(oldOutput, newOutput, ExternalSorter.DEFAULT_MAX_MEMORY, null);
+	}
+
+	/**
+	 * Streams over the differences between two outputs, in key order.
+	 *
+	 * <p>
+	 * Each output is externally sorted by key (using the given memory budget
+	 * and spill directory) unless it is already in order, and then both are
+	 * merge-joined.  Memory use does not depend on the size of the outputs.
+	 * If several records share a key, they are paired up in value order.
+	 * </p>
+	 *
+	 * @param oldOutput the old output
+	 * @param newOutput the new output
+	 * @param maxMemory the memory budget for sorting each output, in bytes
+	 * @param tmpDir the directory to store spill files in, or <code>null</code> for the system default
+	 * @return a {@link CloseableIterator} over the differences
+	 * @throws BoaException if either output could not be read or sorted
+	 */
+	public static CloseableIterator<OutputDiff> diff(final JobOutput oldOutput, final JobOutput newOutput, final long maxMemory, final File tmpDir) throws BoaException {
+		final CloseableIterator<OutputRecord> oldRecords = oldOutput.sortedIfNeeded(OutputRecord.BY_KEY_AND_VALUE, maxMemory, tmpDir);
+		try {
+			return new DiffIterator(oldRecords, newOutput.sortedIfNeeded(OutputRecord.BY_KEY_AND_VALUE, maxMemory, tmpDir));
+		} catch (final BoaException e) {
+			oldRecords.close();
+			throw e;
+		}
+	}
+
+	private CloseableIterator<OutputRecord> sortedIfNeeded(final Comparator<? super OutputRecord> comparator, final long maxMemory, final File tmpDir) throws BoaException {
+		if (isSorted(comparator))
+			return records();
+		return sorted(comparator, maxMemory, tmpDir);
+	}
+
+	/**
+	 * Merge-joins two iterators of records sorted by key and value.
+	 */
+	private static final class DiffIterator implements CloseableIterator<OutputDiff> {
+		private final CloseableIterator<OutputRecord> oldRecords;
+		private final CloseableIterator<OutputRecord> newRecords;
+		private OutputRecord oldHead;
+		private OutputRecord newHead;
+		private OutputDiff next = null;
+
+		DiffIterator(final CloseableIterator<OutputRecord> oldRecords, final CloseableIterator<OutputRecord> newRecords) {
+			this.oldRecords = oldRecords;
+			this.newRecords = newRecords;
+			this.oldHead = oldRecords.hasNext() ? oldRecords.next() : null;
+			this.newHead = newRecords.hasNext() ? newRecords.next() : null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && (oldHead != null || newHead != null)) {
+				final int c;
+				if (oldHead == null)
+					c = 1;
+				else if (newHead == null)
+					c = -1;
+				else
+					c = oldHead.getKey().compareTo(newHead.getKey());
+
+				if (c < 0) {
+					next = new OutputDiff(OutputDiff.Type.REMOVED, oldHead, null);
+					advanceOld();
+				} else if (c > 0) {
+					next = new OutputDiff(OutputDiff.Type.ADDED, null, newHead);
+					advanceNew();
+				} else {
+					if (!oldHead.getValue().equals(newHead.getValue()))
+						next = new OutputDiff(OutputDiff.Type.CHANGED, oldHead, newHead);
+					advanceOld();
+					advanceNew();
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public OutputDiff next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			final OutputDiff d = next;
+			next = null;
+			return d;
+		}
+
+		@Override
+		public void close() {
+			oldRecords.close();
+			newRecords.close();
+		}
+
+		private void advanceOld() {
+			oldHead = oldRecords.hasNext() ? oldRecords.next() : null;
+		}
+
+		private void advanceNew() {
+			newHead = newRecords.hasNext() ? newRecords.next() : null;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams over the lines of a reader, converting each line into an element.
+ *
+ * @author rdyer
+ */
+abstract class LineIterator<T> implements CloseableIterator<T> {
+	private BufferedReader reader;
+	private String next = null;
+
+	LineIterator(final BufferedReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Converts a single line into an element.
+	 *
+	 * @param line the line to convert
+	 * @return the converted element
+	 */
+	protected abstract T convert(final String line);
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean hasNext() {
+		if (next != null)
+			return true;
+		if (reader == null)
+			return false;
+
+		try {
+			next = reader.readLine();
+		} catch (final IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		}
+
+		if (next == null) {
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		final String line = next;
+		next = null;
+		return convert(line);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void close() {
+		try {
+			if (reader != null)
+				reader.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+		reader = null;
+	}
+}
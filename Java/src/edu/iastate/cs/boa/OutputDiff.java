@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+/**
+ * Represents a single difference between two job outputs.  Can not be
+ * created, only returned from diffing outputs (see
+ * {@link BoaClient#diff(JobHandle, JobHandle)}).
+ *
+ * @author rdyer
+ */
+public final class OutputDiff {
+	/**
+	 * The kind of difference.
+	 */
+	public enum Type {
+		/** the key only appears in the new output */
+		ADDED,
+		/** the key only appears in the old output */
+		REMOVED,
+		/** the key appears in both outputs, with different values */
+		CHANGED
+	}
+
+	private final Type type;
+	/**
+	 * Returns the kind of difference.
+	 *
+	 * @return the difference's type
+	 */
+	public final Type getType() { return type; }
+
+	private final OutputRecord oldRecord;
+	/**
+	 * Returns the record from the old output.
+	 *
+	 * @return the old record, or <code>null</code> if the type is {@link Type#ADDED}
+	 */
+	public final OutputRecord getOldRecord() { return oldRecord; }
+
+	private final OutputRecord newRecord;
+	/**
+	 * Returns the record from the new output.
+	 *
+	 * @return the new record, or <code>null</code> if the type is {@link Type#REMOVED}
+	 */
+	public final OutputRecord getNewRecord() { return newRecord; }
+
+	OutputDiff(final Type type, final OutputRecord oldRecord, final OutputRecord newRecord) {
+		this.type = type;
+		this.oldRecord = oldRecord;
+		this.newRecord = newRecord;
+	}
+
+	/**
+	 * Returns the key that differs.
+	 *
+	 * @return the key of the record(s)
+	 */
+	public String getKey() {
+		return oldRecord != null ? oldRecord.getKey() : newRecord.getKey();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public final String toString() {
+		switch (type) {
+			case ADDED:
+				return "+ " + newRecord;
+			case REMOVED:
+				return "- " + oldRecord;
+			default:
+				return "~ " + getKey() + " = " + oldRecord.getValue() + " -> " + newRecord.getValue();
+		}
+	}
+}
@@ -0,0 +1,751 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * A local inverted index over job outputs, mapping each output variable name
+ * and index value to the jobs (and byte offsets within their outputs) that
+ * emitted it.
+ *
+ * <p>
+ * The index is stored in a directory as a set of immutable segment files.
+ * Outputs are added incrementally (see {@link #add(JobHandle)}) and buffered
+ * until {@link #flush()} (or {@link #close()}) writes them as a new segment.
+ * Each segment holds its terms in sorted order with front-coding, and each
+ * term's postings are delta- and varint-encoded.  When there are too many
+ * segments, they are merged into one.
+ * </p>
+ *
+ * <p>
+ * Example usage:
+ * </p>
+ *
+ * <pre>
+ * try (final OutputIndex index = OutputIndex.open(new File("index"))) {
+ *   for (final JobHandle j : client.getJobList())
+ *     if (j.getExecutionStatus() == ExecutionStatus.FINISHED)
+ *       index.add(j);
+ *
+ *   for (final OutputIndex.Hit h : index.prefix("java"))
+ *     System.out.println(h);
+ * }
+ * </pre>
+ *
+ * @author rdyer
+ */
+public final class OutputIndex implements AutoCloseable {
+	private static final byte[] MAGIC = { 'B', 'O', 'A', 'I' };
+	private static final byte VERSION = 1;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".idx";
+
+	/** how many terms are front-coded against each other before restarting */
+	private static final int RESTART_INTERVAL = 64;
+	/** how many segments are allowed before merging them */
+	private static final int MAX_SEGMENTS = 16;
+
+	/**
+	 * A single occurrence of a term in a job's output.
+	 */
+	public static final class Hit {
+		private final String term;
+		/**
+		 * Returns the term that matched.
+		 *
+		 * @return the matched term
+		 */
+		public final String getTerm() { return term; }
+
+		private final int jobId;
+		/**
+		 * Returns the id of the job whose output contains the term.
+		 *
+		 * @return the job's id
+		 */
+		public final int getJobId() { return jobId; }
+
+		private final long offset;
+		/**
+		 * Returns the byte offset of the output line containing the term.
+		 *
+		 * @return the line's offset
+		 */
+		public final long getOffset() { return offset; }
+
+		Hit(final String term, final int jobId, final long offset) {
+			this.term = term;
+			this.jobId = jobId;
+			this.offset = offset;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public final String toString() {
+			return term + " - job " + jobId + " @ " + offset;
+		}
+	}
+
+	private final File dir;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final Set<Integer> pendingJobs = new HashSet<Integer>();
+	private ExternalSorter<String> pending = null;
+	private int nextSegment = 0;
+
+	private OutputIndex(final File dir) throws IOException {
+		this.dir = dir;
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create index directory '" + dir + "'.");
+
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (final File f : files) {
+				final String name = f.getName();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					segments.add(new Segment(f));
+					nextSegment = Math.max(nextSegment, Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())) + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens (or creates) an index stored in the given directory.
+	 *
+	 * @param dir the directory holding the index
+	 * @return the opened index
+	 * @throws BoaException if the index could not be opened
+	 */
+	public static OutputIndex open(final File dir) throws BoaException {
+		try {
+			return new OutputIndex(dir);
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Checks if a job's output was already added to the index.
+	 *
+	 * @param jobId the job's id
+	 * @return <code>true</code> if the job's output is in the index
+	 */
+	public synchronized boolean contains(final int jobId) {
+		if (pendingJobs.contains(jobId))
+			return true;
+		for (final Segment s : segments)
+			if (s.jobIds.contains(jobId))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Adds a job's output to the index, if it is not already in the index.
+	 * The output is downloaded into a temporary file.
+	 *
+	 * @param job the job to add
+	 * @throws BoaException if the output could not be read or indexed
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public void add(final JobHandle job) throws BoaException, NotLoggedInException {
+		if (contains(job.getId()))
+			return;
+
+		File f = null;
+		try {
+			f = File.createTempFile("boa-index", ".txt");
+			job.getOutput(f);
+			add(job.getId(), new JobOutput(f));
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		} finally {
+			if (f != null)
+				f.delete();
+		}
+	}
+
+	/**
+	 * Adds a job's output to the index, if it is not already in the index.
+	 *
+	 * @param jobId the job's id
+	 * @param output the job's output
+	 * @throws BoaException if the output could not be read or indexed
+	 */
+	public synchronized void add(final int jobId, final JobOutput output) throws BoaException {
+		if (contains(jobId))
+			return;
+
+		if (pending == null)
+			pending = new ExternalSorter<String>(Comparator.<String>naturalOrder(), IDENTITY, IDENTITY, ExternalSorter.DEFAULT_MAX_MEMORY, dir);
+
+		try (final InputStream in = new BufferedInputStream(new FileInputStream(output.getFile()))) {
+			final ByteArrayOutputStream line = new ByteArrayOutputStream();
+			long offset = 0;
+			long lineStart = 0;
+			int b;
+			while (true) {
+				b = in.read();
+				if (b == -1 || b == '\n') {
+					if (line.size() > 0)
+						addLine(jobId, lineStart, new String(line.toByteArray(), StandardCharsets.UTF_8));
+					if (b == -1)
+						break;
+					line.reset();
+					lineStart = offset + 1;
+				} else {
+					line.write(b);
+				}
+				offset++;
+			}
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+
+		pendingJobs.add(jobId);
+	}
+
+	/**
+	 * Writes any added outputs as a new segment.
+	 *
+	 * @throws BoaException if the segment could not be written
+	 */
+	public synchronized void flush() throws BoaException {
+		if (pending == null)
+			return;
+
+		final File f = new File(dir, segmentName(nextSegment++));
+		try (final CloseableIterator<String> it = pending.sort()) {
+			writeSegment(f, pendingJobs, new GroupingIterator(it));
+			segments.add(new Segment(f));
+		} catch (final IOException e) {
+			f.delete();
+			throw new BoaException(e.getMessage(), e);
+		} finally {
+			pending = null;
+			pendingJobs.clear();
+		}
+
+		if (segments.size() > MAX_SEGMENTS)
+			merge();
+	}
+
+	/**
+	 * Merges all segments of the index into one.
+	 *
+	 * @throws BoaException if the merged segment could not be written
+	 */
+	public synchronized void merge() throws BoaException {
+		if (segments.size() < 2)
+			return;
+
+		final Set<Integer> jobIds = new TreeSet<Integer>();
+		final List<Iterator<Term>> sources = new ArrayList<Iterator<Term>>();
+		for (final Segment s : segments) {
+			jobIds.addAll(s.jobIds);
+			sources.add(s.terms(""));
+		}
+
+		final File f = new File(dir, segmentName(nextSegment++));
+		try {
+			writeSegment(f, jobIds, new MergingIterator(sources));
+			for (final Segment s : segments) {
+				s.close();
+				s.file.delete();
+			}
+			segments.clear();
+			segments.add(new Segment(f));
+		} catch (final IOException e) {
+			f.delete();
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns every occurrence of a term.  Only terms in flushed segments are
+	 * returned.
+	 *
+	 * @param term the term to look up
+	 * @return a (possibly empty) {@link java.util.List} of hits, ordered by job id and offset
+	 */
+	public synchronized List<Hit> lookup(final String term) {
+		final List<Hit> hits = new ArrayList<Hit>();
+		for (final Segment s : segments) {
+			final Iterator<Term> it = s.terms(term);
+			if (it.hasNext()) {
+				final Term t = it.next();
+				if (t.term.equals(term))
+					t.addHits(hits);
+			}
+		}
+		sortHits(hits);
+		return hits;
+	}
+
+	/**
+	 * Returns every occurrence of all terms starting with the given prefix.
+	 * Only terms in flushed segments are returned.
+	 *
+	 * @param prefix the prefix to look up
+	 * @return a (possibly empty) {@link java.util.List} of hits, ordered by term, job id and offset
+	 */
+	public synchronized List<Hit> prefix(final String prefix) {
+		final List<Hit> hits = new ArrayList<Hit>();
+		for (final Segment s : segments) {
+			final Iterator<Term> it = s.terms(prefix);
+			while (it.hasNext()) {
+				final Term t = it.next();
+				if (!t.term.startsWith(prefix))
+					break;
+				t.addHits(hits);
+			}
+		}
+		sortHits(hits);
+		return hits;
+	}
+
+	/**
+	 * Flushes any added outputs and closes the index.
+	 *
+	 * @throws BoaException if the pending outputs could not be written
+	 */
+	@Override
+	public synchronized void close() throws BoaException {
+		try {
+			flush();
+		} finally {
+			for (final Segment s : segments)
+				s.close();
+			segments.clear();
+		}
+	}
+
+	private void addLine(final int jobId, final long offset, final String line) throws IOException {
+		final OutputRecord r = Util.parseRecord(line);
+		final String suffix = "\u0000" + String.format("%08x\u0000%016x", jobId, offset);
+
+		pending.add(r.getVariable() + suffix);
+		for (final String index : r.getIndices())
+			if (!index.isEmpty())
+				pending.add(index + suffix);
+	}
+
+	private static String segmentName(final int n) {
+		return String.format("%s%08d%s", SEGMENT_PREFIX, n, SEGMENT_SUFFIX);
+	}
+
+	private static void sortHits(final List<Hit> hits) {
+		Collections.sort(hits, new Comparator<Hit>() {
+			@Override
+			public int compare(final Hit h1, final Hit h2) {
+				int c = h1.term.compareTo(h2.term);
+				if (c == 0)
+					c = Integer.compare(h1.jobId, h2.jobId);
+				if (c == 0)
+					c = Long.compare(h1.offset, h2.offset);
+				return c;
+			}
+		});
+	}
+
+	private static final Function<String, String> IDENTITY = Function.identity();
+
+	/**
+	 * A term along with its postings, sorted by job id and offset.
+	 */
+	private static final class Term {
+		final String term;
+		final int[] jobIds;
+		final long[] offsets;
+
+		Term(final String term, final int[] jobIds, final long[] offsets) {
+			this.term = term;
+			this.jobIds = jobIds;
+			this.offsets = offsets;
+		}
+
+		void addHits(final List<Hit> hits) {
+			for (int i = 0; i < jobIds.length; i++)
+				hits.add(new Hit(term, jobIds[i], offsets[i]));
+		}
+	}
+
+	/**
+	 * Writes a segment from a stream of terms in sorted order.
+	 */
+	private static void writeSegment(final File f, final Set<Integer> jobIds, final Iterator<Term> terms) throws IOException {
+		final File tmp = new File(f.getPath() + ".tmp");
+
+		try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+
+			final List<Integer> ids = new ArrayList<Integer>(new TreeSet<Integer>(jobIds));
+			Varints.writeVarLong(out, ids.size());
+			int prevId = 0;
+			for (final int id : ids) {
+				Varints.writeVarLong(out, id - prevId);
+				prevId = id;
+			}
+
+			// terms, front-coded with a restart point every RESTART_INTERVAL terms
+			final List<String> restartTerms = new ArrayList<String>();
+			final List<Integer> restartOffsets = new ArrayList<Integer>();
+			final ByteArrayOutputStream postings = new ByteArrayOutputStream();
+			byte[] prev = new byte[0];
+			int count = 0;
+
+			try {
+				while (terms.hasNext()) {
+					final Term t = terms.next();
+					final byte[] bytes = t.term.getBytes(StandardCharsets.UTF_8);
+
+					int shared = 0;
+					if (count % RESTART_INTERVAL == 0) {
+						restartTerms.add(t.term);
+						restartOffsets.add(out.size());
+					} else {
+						while (shared < bytes.length && shared < prev.length && bytes[shared] == prev[shared])
+							shared++;
+					}
+
+					Varints.writeVarLong(out, shared);
+					Varints.writeVarLong(out, bytes.length - shared);
+					out.write(bytes, shared, bytes.length - shared);
+
+					postings.reset();
+					Varints.writeVarLong(postings, t.jobIds.length);
+					int lastJob = 0;
+					long lastOffset = 0;
+					for (int i = 0; i < t.jobIds.length; i++) {
+						Varints.writeVarLong(postings, t.jobIds[i] - lastJob);
+						Varints.writeVarLong(postings, t.jobIds[i] == lastJob && i > 0 ? t.offsets[i] - lastOffset : t.offsets[i]);
+						lastJob = t.jobIds[i];
+						lastOffset = t.offsets[i];
+					}
+					Varints.writeVarLong(out, postings.size());
+					postings.writeTo(out);
+
+					prev = bytes;
+					count++;
+				}
+			} catch (final UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			// the sparse term index
+			final int indexOffset = out.size();
+			Varints.writeVarLong(out, restartTerms.size());
+			for (int i = 0; i < restartTerms.size(); i++) {
+				final byte[] bytes = restartTerms.get(i).getBytes(StandardCharsets.UTF_8);
+				Varints.writeVarLong(out, bytes.length);
+				out.write(bytes);
+				out.writeInt(restartOffsets.get(i));
+			}
+
+			out.writeInt(indexOffset);
+			out.write(MAGIC);
+
+			if (out.size() == Integer.MAX_VALUE)
+				throw new IOException("Index segment '" + f + "' is too large.");
+		} catch (final IOException e) {
+			tmp.delete();
+			throw e;
+		}
+
+		if (!tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("Could not write index segment '" + f + "'.");
+		}
+	}
+
+	/**
+	 * A memory-mapped, read-only segment of the index.
+	 */
+	private static final class Segment {
+		final File file;
+		final Set<Integer> jobIds = new HashSet<Integer>();
+		private final RandomAccessFile raf;
+		private final ByteBuffer buf;
+		private final String[] restartTerms;
+		private final int[] restartOffsets;
+
+		Segment(final File file) throws IOException {
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "r");
+
+			try {
+				final long size = raf.length();
+				if (size > Integer.MAX_VALUE || size < MAGIC.length * 2 + 5)
+					throw new IOException("Index segment '" + file + "' is invalid.");
+				buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+				final byte[] magic = new byte[MAGIC.length];
+				buf.get(magic);
+				if (!Arrays.equals(magic, MAGIC) || buf.get() != VERSION)
+					throw new IOException("Index segment '" + file + "' is invalid.");
+
+				final int jobCount = Varints.readVarInt(buf);
+				int id = 0;
+				for (int i = 0; i < jobCount; i++) {
+					id += Varints.readVarInt(buf);
+					jobIds.add(id);
+				}
+
+				final ByteBuffer index = buf.duplicate();
+				index.position((int)size - MAGIC.length);
+				index.get(magic);
+				if (!Arrays.equals(magic, MAGIC))
+					throw new IOException("Index segment '" + file + "' is truncated.");
+				index.position(buf.getInt((int)size - MAGIC.length - 4));
+
+				final int restarts = Varints.readVarInt(index);
+				restartTerms = new String[restarts];
+				restartOffsets = new int[restarts];
+				for (int i = 0; i < restarts; i++) {
+					final byte[] bytes = new byte[Varints.readVarInt(index)];
+					index.get(bytes);
+					restartTerms[i] = new String(bytes, StandardCharsets.UTF_8);
+					restartOffsets[i] = index.getInt();
+				}
+			} catch (final IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Returns the terms in the segment, starting with the first term that
+		 * is not less than the given term.
+		 */
+		Iterator<Term> terms(final String from) {
+			int restart = Arrays.binarySearch(restartTerms, from);
+			if (restart < 0)
+				restart = Math.max(0, -restart - 2);
+
+			final ByteBuffer in = buf.duplicate();
+			if (restartTerms.length > 0)
+				in.position(restartOffsets[restart]);
+			final int end = restartTerms.length > 0 ? buf.getInt(buf.limit() - MAGIC.length - 4) : 0;
+
+			return new Iterator<Term>() {
+				private byte[] prev = new byte[0];
+				private Term next = null;
+
+				@Override
+				public boolean hasNext() {
+					while (next == null && in.position() < end) {
+						final int shared = Varints.readVarInt(in);
+						final byte[] bytes = new byte[shared + Varints.readVarInt(in)];
+						System.arraycopy(prev, 0, bytes, 0, shared);
+						in.get(bytes, shared, bytes.length - shared);
+						prev = bytes;
+
+						final int postingsLen = Varints.readVarInt(in);
+						final String term = new String(bytes, StandardCharsets.UTF_8);
+						if (term.compareTo(from) < 0) {
+							in.position(in.position() + postingsLen);
+							continue;
+						}
+
+						final int count = Varints.readVarInt(in);
+						final int[] jobs = new int[count];
+						final long[] offsets = new long[count];
+						int lastJob = 0;
+						long lastOffset = 0;
+						for (int i = 0; i < count; i++) {
+							final int delta = Varints.readVarInt(in);
+							final long offset = Varints.readVarLong(in);
+							jobs[i] = lastJob + delta;
+							offsets[i] = delta == 0 && i > 0 ? lastOffset + offset : offset;
+							lastJob = jobs[i];
+							lastOffset = offsets[i];
+						}
+						next = new Term(term, jobs, offsets);
+					}
+					return next != null;
+				}
+
+				@Override
+				public Term next() {
+					if (!hasNext())
+						throw new NoSuchElementException();
+					final Term t = next;
+					next = null;
+					return t;
+				}
+			};
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Groups sorted pending entries (term, job id, offset) into terms.
+	 */
+	private static final class GroupingIterator implements Iterator<Term> {
+		private final Iterator<String> entries;
+		private String[] head = null;
+
+		GroupingIterator(final Iterator<String> entries) {
+			this.entries = entries;
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return head != null;
+		}
+
+		@Override
+		public Term next() {
+			if (head == null)
+				throw new NoSuchElementException();
+
+			final String term = head[0];
+			final List<String[]> group = new ArrayList<String[]>();
+			while (head != null && head[0].equals(term)) {
+				group.add(head);
+				advance();
+			}
+
+			final int[] jobs = new int[group.size()];
+			final long[] offsets = new long[group.size()];
+			for (int i = 0; i < jobs.length; i++) {
+				jobs[i] = Integer.parseInt(group.get(i)[1], 16);
+				offsets[i] = Long.parseLong(group.get(i)[2], 16);
+			}
+			return new Term(term, jobs, offsets);
+		}
+
+		private void advance() {
+			if (!entries.hasNext()) {
+				head = null;
+				return;
+			}
+			final String e = entries.next();
+			final int second = e.lastIndexOf('\u0000');
+			final int first = e.lastIndexOf('\u0000', second - 1);
+			head = new String[] { e.substring(0, first), e.substring(first + 1, second), e.substring(second + 1) };
+		}
+	}
+
+	/**
+	 * Merges the terms of several segments, combining the postings of equal terms.
+	 */
+	private static final class MergingIterator implements Iterator<Term> {
+		private final PriorityQueue<Head> heads = new PriorityQueue<Head>(11, new Comparator<Head>() {
+			@Override
+			public int compare(final Head h1, final Head h2) {
+				return h1.term.term.compareTo(h2.term.term);
+			}
+		});
+
+		MergingIterator(final List<Iterator<Term>> sources) {
+			for (final Iterator<Term> it : sources)
+				if (it.hasNext())
+					heads.add(new Head(it.next(), it));
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		@Override
+		public Term next() {
+			if (heads.isEmpty())
+				throw new NoSuchElementException();
+
+			final String term = heads.peek().term.term;
+			final List<Term> same = new ArrayList<Term>();
+			while (!heads.isEmpty() && heads.peek().term.term.equals(term)) {
+				final Head h = heads.poll();
+				same.add(h.term);
+				if (h.source.hasNext()) {
+					h.term = h.source.next();
+					heads.add(h);
+				}
+			}
+			if (same.size() == 1)
+				return same.get(0);
+
+			final List<long[]> postings = new ArrayList<long[]>();
+			for (final Term t : same)
+				for (int i = 0; i < t.jobIds.length; i++)
+					postings.add(new long[] { t.jobIds[i], t.offsets[i] });
+			Collections.sort(postings, new Comparator<long[]>() {
+				@Override
+				public int compare(final long[] p1, final long[] p2) {
+					final int c = Long.compare(p1[0], p2[0]);
+					return c != 0 ? c : Long.compare(p1[1], p2[1]);
+				}
+			});
+
+			final int[] jobs = new int[postings.size()];
+			final long[] offsets = new long[postings.size()];
+			for (int i = 0; i < jobs.length; i++) {
+				jobs[i] = (int)postings.get(i)[0];
+				offsets[i] = postings.get(i)[1];
+			}
+			return new Term(term, jobs, offsets);
+		}
+
+		private static final class Head {
+			Term term;
+			final Iterator<Term> source;
+
+			Head(final Term term, final Iterator<Term> source) {
+				this.term = term;
+				this.source = source;
+			}
+		}
+	}
+}
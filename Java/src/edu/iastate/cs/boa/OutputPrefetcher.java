@@ -0,0 +1,287 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads the outputs of finished jobs into a client's output store (see
+ * {@link BoaClient#setOutputStore(ChunkStore)}) in the background, so a
+ * later {@link JobHandle#getOutput(java.io.File)} is served locally.
+ *
+ * <p>
+ * Once installed on a client (see {@link BoaClient#setPrefetcher(OutputPrefetcher)}),
+ * every job the client returns (for example from {@link BoaClient#getJobList()})
+ * is considered.  Finished jobs are queued for download right away, and jobs
+ * still waiting or running are watched until they finish.  Jobs can also be
+ * watched explicitly (see {@link #watch(JobHandle)}).  Downloads run on a
+ * bounded number of threads within a bandwidth budget, most recently
+ * submitted jobs first.  A client with a {@link BoaRuntime} prefetches on the
+ * runtime's threads.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class OutputPrefetcher implements AutoCloseable {
+	private static final long DEFAULT_POLL_INTERVAL = 30000;
+
+	private final BoaClient client;
+	private final int maxConcurrent;
+	private final TokenBucket bandwidth;
+	private final ExecutorService downloads;
+	private final ScheduledExecutorService poller;
+	private final ScheduledFuture<?> polling;
+	/** lets closing the prefetcher close the connections of downloads in progress */
+	private final Deadline deadline = new Deadline(null, Long.MAX_VALUE, false);
+	private final Map<Integer, JobHandle> watched = new ConcurrentHashMap<Integer, JobHandle>();
+	/** the keys of outputs waiting or being downloaded, guarding pending and running */
+	private final Set<String> queued = new HashSet<String>();
+	private final PriorityQueue<Task> pending = new PriorityQueue<Task>();
+	private int running = 0;
+	private final AtomicInteger prefetched = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a prefetcher that checks watched jobs every 30 seconds.
+	 *
+	 * @param client the client to prefetch outputs for, which must have an output store
+	 * @param maxConcurrent the most outputs to download at once
+	 * @param maxBytesPerSecond the bandwidth budget for all prefetch downloads, or 0 for no limit
+	 */
+	public OutputPrefetcher(final BoaClient client, final int maxConcurrent, final long maxBytesPerSecond) {
+		this(client, maxConcurrent, maxBytesPerSecond, DEFAULT_POLL_INTERVAL);
+	}
+
+	/**
+	 * Creates a prefetcher.
+	 *
+	 * @param client the client to prefetch outputs for, which must have an output store
+	 * @param maxConcurrent the most outputs to download at once
+	 * @param maxBytesPerSecond the bandwidth budget for all prefetch downloads, or 0 for no limit
+	 * @param pollInterval how often to check watched jobs, in milliseconds
+	 */
+	public OutputPrefetcher(final BoaClient client, final int maxConcurrent, final long maxBytesPerSecond, final long pollInterval) {
+		if (client.getOutputStore() == null)
+			throw new IllegalStateException("The client must have an output store to prefetch into.");
+		if (maxConcurrent < 1)
+			throw new IllegalArgumentException("Argument 'maxConcurrent' must be positive.");
+
+		this.client = client;
+		this.maxConcurrent = maxConcurrent;
+		this.bandwidth = maxBytesPerSecond > 0 ? new TokenBucket(maxBytesPerSecond, maxBytesPerSecond) : null;
+		if (client.getRuntime() != null) {
+			this.downloads = client.getRuntimeExecutor();
+			this.poller = client.getRuntimeExecutor();
+		} else {
+			final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), daemonThreads("boa-prefetch"));
+			pool.allowCoreThreadTimeOut(true);
+			this.downloads = pool;
+			this.poller = Executors.newSingleThreadScheduledExecutor(daemonThreads("boa-prefetch-poll"));
+		}
+		this.polling = poller.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Watches a job and prefetches its output once it finishes.
+	 *
+	 * @param job the job to watch
+	 */
+	public void watch(final JobHandle job) {
+		offer(job);
+	}
+
+	/**
+	 * Returns how many outputs were downloaded so far.
+	 *
+	 * @return the number of prefetched outputs
+	 */
+	public int getPrefetchedCount() {
+		return prefetched.get();
+	}
+
+	/**
+	 * Stops watching jobs and cancels any queued downloads.  Downloads in
+	 * progress have their connections closed.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		polling.cancel(false);
+		deadline.cancel();
+		synchronized (queued) {
+			for (final Task t : pending)
+				queued.remove(t.key);
+			pending.clear();
+		}
+		if (client.getRuntime() == null) {
+			poller.shutdownNow();
+			downloads.shutdownNow();
+		}
+		watched.clear();
+	}
+
+	/**
+	 * Considers a job returned by the client.
+	 */
+	void offer(final JobHandle job) {
+		if (closed || job.getCompilerStatus() == CompileStatus.ERROR)
+			return;
+
+		switch (job.getExecutionStatus()) {
+			case FINISHED:
+				watched.remove(job.getId());
+				enqueue(job);
+				break;
+			case ERROR:
+				watched.remove(job.getId());
+				break;
+			default:
+				watched.put(job.getId(), job);
+				break;
+		}
+	}
+
+	private void poll() {
+		if (watched.isEmpty())
+			return;
+
+		try {
+			// the results are offered back to us by the client
+			client.pollJobs(new ArrayList<Integer>(watched.keySet()));
+		} catch (final BoaException e) {
+			// try again on the next poll
+		}
+	}
+
+	private void enqueue(final JobHandle job) {
+		final String key = BoaClient.outputKey(job);
+		synchronized (queued) {
+			if (queued.contains(key))
+				return;
+			final ChunkStore store = client.getOutputStore();
+			if (store == null || store.contains(key))
+				return;
+			queued.add(key);
+			pending.add(new Task(job, key));
+			dispatch();
+		}
+	}
+
+	/**
+	 * Starts the most recent pending downloads while under the limit.
+	 */
+	private void dispatch() {
+		synchronized (queued) {
+			while (running < maxConcurrent && !pending.isEmpty()) {
+				final Task task = pending.poll();
+				running++;
+				try {
+					downloads.execute(task);
+				} catch (final RejectedExecutionException e) {
+					// closed
+					running--;
+					queued.remove(task.key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Downloads one output.  Orders the most recently submitted jobs first.
+	 */
+	private final class Task implements Runnable, Comparable<Task> {
+		private final JobHandle job;
+		private final String key;
+
+		Task(final JobHandle job, final String key) {
+			this.job = job;
+			this.key = key;
+		}
+
+		@Override
+		public int compareTo(final Task t) {
+			// jobs without a date go last
+			if (job.getDate() == null || t.job.getDate() == null)
+				return Boolean.compare(job.getDate() == null, t.job.getDate() == null);
+			return t.job.getDate().compareTo(job.getDate());
+		}
+
+		@Override
+		public void run() {
+			final Deadline previous = Deadline.enter(deadline);
+			File f = null;
+			try {
+				final ChunkStore store = client.getOutputStore();
+				if (store == null || closed || store.contains(key))
+					return;
+
+				f = File.createTempFile("boa-prefetch", ".txt");
+				client.getOutput(job.getId(), f, DownloadScheduler.Priority.BULK, bandwidth);
+				store.put(key, f);
+				prefetched.incrementAndGet();
+			} catch (final IOException e) {
+				// skip this job, it will be downloaded on demand
+			} catch (final BoaException e) {
+				// skip this job, it will be downloaded on demand
+			} finally {
+				Deadline.exit(previous);
+				if (f != null)
+					f.delete();
+				synchronized (queued) {
+					queued.remove(key);
+					running--;
+				}
+				dispatch();
+			}
+		}
+	}
+
+	static ThreadFactory daemonThreads(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Represents a single line of a job's output, such as
+ * <code>counts[java][2013] = 42</code>.  Can not be created, only returned
+ * from reading a {@link JobOutput}.
+ *
+ * @author rdyer
+ */
+public final class OutputRecord implements Serializable {
+	private static final long serialVersionUID = -3164880297313306413L;
+
+	/**
+	 * Orders records by their key (the output variable and its indices).
+	 */
+	public static final Comparator<OutputRecord> BY_KEY = new Comparator<OutputRecord>() {
+		@Override
+		public int compare(final OutputRecord r1, final OutputRecord r2) {
+			return r1.key.compareTo(r2.key);
+		}
+	};
+
+	/**
+	 * Orders records by their key and then by their value.
+	 */
+	public static final Comparator<OutputRecord> BY_KEY_AND_VALUE = new Comparator<OutputRecord>() {
+		@Override
+		public int compare(final OutputRecord r1, final OutputRecord r2) {
+			final int c = r1.key.compareTo(r2.key);
+			if (c != 0)
+				return c;
+			return r1.value.compareTo(r2.value);
+		}
+	};
+
+	/**
+	 * Orders records by the numeric value of their value.  Values that are not
+	 * numbers are ordered after all numbers.
+	 */
+	public static final Comparator<OutputRecord> BY_NUMERIC_VALUE = new Comparator<OutputRecord>() {
+		@Override
+		public int compare(final OutputRecord r1, final OutputRecord r2) {
+			final double d1 = r1.getNumericValue();
+			final double d2 = r2.getNumericValue();
+			if (Double.isNaN(d1))
+				return Double.isNaN(d2) ? 0 : 1;
+			if (Double.isNaN(d2))
+				return -1;
+			return Double.compare(d1, d2);
+		}
+	};
+
+	private final String key;
+	/**
+	 * Returns the key of the record, which is the output variable followed by
+	 * any indices, e.g. <code>counts[java][2013]</code>.
+	 *
+	 * @return the record's key
+	 */
+	public final String getKey() { return key; }
+
+	private final String variable;
+	/**
+	 * Returns the name of the output variable that emitted this record.
+	 *
+	 * @return the output variable's name
+	 */
+	public final String getVariable() { return variable; }
+
+	private final String[] indices;
+	/**
+	 * Returns the indices of the record, in order.
+	 *
+	 * @return a (possibly empty) {@link java.util.List} of the record's indices
+	 */
+	public final List<String> getIndices() { return Collections.unmodifiableList(Arrays.asList(indices)); }
+
+	private final String value;
+	/**
+	 * Returns the value of the record.
+	 *
+	 * @return the record's value
+	 */
+	public final String getValue() { return value; }
+
+	OutputRecord(final String key, final String variable, final String[] indices, final String value) {
+		this.key = key;
+		this.variable = variable;
+		this.indices = indices;
+		this.value = value;
+	}
+
+	/**
+	 * Returns the value of the record as a number.
+	 *
+	 * @return the numeric value, or {@link Double#NaN} if the value is not a number
+	 */
+	public double getNumericValue() {
+		try {
+			return Double.parseDouble(value);
+		} catch (final NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean equals(final Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof OutputRecord))
+			return false;
+		final OutputRecord r = (OutputRecord)o;
+		return key.equals(r.key) && value.equals(r.value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int hashCode() {
+		return 31 * key.hashCode() + value.hashCode();
+	}
+
+	/**
+	 * Returns the record in the same form it has in the job's output.
+	 *
+	 * @return the output line for this record
+	 */
+	@Override
+	public final String toString() {
+		return key + " = " + value;
+	}
+}
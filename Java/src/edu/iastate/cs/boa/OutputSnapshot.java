@@ -0,0 +1,587 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary snapshot of a job's parsed output, which can be reopened
+ * without reparsing the text output.
+ *
+ * <p>
+ * A snapshot is written once (see {@link #write(JobOutput, java.io.File)})
+ * and then opened any number of times (see {@link #open(java.io.File)}).
+ * Opening a snapshot only reads a small trailer and memory-maps the file, so
+ * it takes the same time no matter how large the output is.  Records are
+ * decoded lazily while iterating.
+ * </p>
+ *
+ * <p>
+ * The file is a sequence of independently decodable blocks of about 64KB,
+ * each protected by a CRC32 checksum, followed by a string dictionary and an
+ * index of the blocks.  Within a block, keys are stored before values.  Each
+ * key stores how many leading indices it shares with the previous key, and
+ * values that are integers or floating point numbers are stored in binary.
+ * Strings that repeat (such as variable names) are stored once in the
+ * dictionary.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class OutputSnapshot implements AutoCloseable {
+	private static final byte[] MAGIC = { 'B', 'O', 'A', 'S' };
+	private static final byte VERSION = 1;
+	private static final int HEADER_SIZE = MAGIC.length + 1;
+	private static final int TRAILER_SIZE = 8 + 8 + 4 + 8 + 4 + 8 + MAGIC.length;
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final int MAX_DICTIONARY_SIZE = 1 << 20;
+	private static final int MAX_DICTIONARY_STRING = 256;
+	private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+	private static final byte VALUE_LONG   = 0;
+	private static final byte VALUE_DOUBLE = 1;
+	private static final byte VALUE_STRING = 2;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteBuffer meta;
+	private final long dictOffset;
+	private final long dictTableOffset;
+	private final int dictCount;
+	private final long indexOffset;
+	private final int blockCount;
+	private final long recordCount;
+	private String[] dictionary;
+
+	private OutputSnapshot(final File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+
+		try {
+			final long size = channel.size();
+			if (size < HEADER_SIZE + TRAILER_SIZE)
+				throw new IOException("File '" + file + "' is not an output snapshot.");
+
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(header, 0);
+			header.flip();
+			final byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException("File '" + file + "' is not an output snapshot.");
+			if (header.get() != VERSION)
+				throw new IOException("Output snapshot '" + file + "' has an unsupported version.");
+
+			final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+			channel.read(trailer, size - TRAILER_SIZE);
+			trailer.flip();
+			dictOffset = trailer.getLong();
+			dictTableOffset = trailer.getLong();
+			dictCount = trailer.getInt();
+			indexOffset = trailer.getLong();
+			blockCount = trailer.getInt();
+			recordCount = trailer.getLong();
+			trailer.get(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException("Output snapshot '" + file + "' is truncated.");
+
+			final long metaSize = size - TRAILER_SIZE - dictOffset;
+			if (metaSize > Integer.MAX_VALUE)
+				throw new IOException("Output snapshot '" + file + "' has too large of a dictionary.");
+			meta = channel.map(FileChannel.MapMode.READ_ONLY, dictOffset, metaSize);
+		} catch (final IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a snapshot for reading.
+	 *
+	 * @param f the snapshot file
+	 * @return the opened snapshot
+	 * @throws BoaException if the file is not a valid snapshot or can not be read
+	 */
+	public static OutputSnapshot open(final File f) throws BoaException {
+		try {
+			return new OutputSnapshot(f);
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the snapshot's file.
+	 *
+	 * @return the snapshot's file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of records in the snapshot.
+	 *
+	 * @return the number of records
+	 */
+	public long size() {
+		return recordCount;
+	}
+
+	/**
+	 * Streams over the records in the snapshot, in the order they were
+	 * written.  Each block's checksum is verified as it is read.
+	 *
+	 * @return a {@link CloseableIterator} over the records
+	 */
+	public CloseableIterator<OutputRecord> records() {
+		return new RecordIterator();
+	}
+
+	/**
+	 * Verifies the checksums of all blocks in the snapshot.
+	 *
+	 * @throws BoaException if a block is corrupt or the file can not be read
+	 */
+	public void verify() throws BoaException {
+		try {
+			for (int i = 0; i < blockCount; i++)
+				readBlock(i);
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Closes the snapshot.
+	 */
+	@Override
+	public void close() {
+		try {
+			raf.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+	}
+
+	private long blockOffset(final int block) {
+		return meta.getLong((int)(indexOffset - dictOffset) + block * 8);
+	}
+
+	private long blockEnd(final int block) {
+		return block + 1 < blockCount ? blockOffset(block + 1) : dictOffset;
+	}
+
+	private synchronized String dictionaryString(final int id) {
+		if (dictionary == null)
+			dictionary = new String[dictCount];
+		if (dictionary[id] == null) {
+			final ByteBuffer buf = meta.duplicate();
+			buf.position(meta.getInt((int)(dictTableOffset - dictOffset) + id * 4));
+			dictionary[id] = readLiteral(buf, Varints.readVarInt(buf));
+		}
+		return dictionary[id];
+	}
+
+	private String readString(final ByteBuffer buf) {
+		final long ref = Varints.readVarLong(buf);
+		if ((ref & 1) == 0)
+			return dictionaryString((int)(ref >>> 1));
+		return readLiteral(buf, (int)(ref >>> 1));
+	}
+
+	private static String readLiteral(final ByteBuffer buf, final int len) {
+		final byte[] bytes = new byte[len];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private ByteBuffer segment = null;
+	private long segmentStart = 0;
+	private long segmentEnd = 0;
+
+	/**
+	 * Returns the checksummed payload of the given block.  Blocks are mapped
+	 * in segments of up to 1GB, so files larger than 2GB are supported.
+	 */
+	private synchronized ByteBuffer readBlock(final int block) throws IOException {
+		final long start = blockOffset(block);
+		final long end = blockEnd(block);
+
+		if (segment == null || start < segmentStart || end > segmentEnd) {
+			int last = block;
+			while (last + 1 < blockCount && blockEnd(last + 1) - start <= MAX_SEGMENT_SIZE)
+				last++;
+			segmentStart = start;
+			segmentEnd = blockEnd(last);
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentEnd - segmentStart);
+		}
+
+		final ByteBuffer buf = segment.duplicate();
+		buf.position((int)(start - segmentStart));
+		buf.limit((int)(end - segmentStart));
+
+		final int keysLen = buf.getInt();
+		final int valuesLen = buf.getInt();
+		buf.getInt(); // record count
+		final int crc = buf.getInt();
+
+		final ByteBuffer payload = buf.slice();
+		if (payload.remaining() != keysLen + valuesLen)
+			throw new IOException("Output snapshot '" + file + "' has a corrupt block " + block + ".");
+		final CRC32 crc32 = new CRC32();
+		crc32.update(payload.duplicate());
+		if ((int)crc32.getValue() != crc)
+			throw new IOException("Output snapshot '" + file + "' has a corrupt block " + block + ".");
+
+		buf.position((int)(start - segmentStart));
+		return buf;
+	}
+
+	/**
+	 * Decodes records block by block.
+	 */
+	private final class RecordIterator implements CloseableIterator<OutputRecord> {
+		private int block = 0;
+		private int remaining = 0;
+		private ByteBuffer keys;
+		private ByteBuffer values;
+		private String[] prevIndices = new String[0];
+
+		@Override
+		public boolean hasNext() {
+			while (remaining == 0) {
+				if (block >= blockCount)
+					return false;
+				nextBlock();
+			}
+			return true;
+		}
+
+		@Override
+		public OutputRecord next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			remaining--;
+
+			final int header = Varints.readVarInt(keys);
+			final boolean brackets = (header & 1) != 0;
+			final int shared = header >>> 1;
+			final String variable = readString(keys);
+			final int added = Varints.readVarInt(keys);
+
+			final String[] indices = new String[shared + added];
+			System.arraycopy(prevIndices, 0, indices, 0, shared);
+			for (int i = shared; i < indices.length; i++)
+				indices[i] = readString(keys);
+			prevIndices = indices;
+
+			final String value;
+			switch (values.get()) {
+				case VALUE_LONG:
+					value = Long.toString(Varints.unzigzag(Varints.readVarLong(values)));
+					break;
+				case VALUE_DOUBLE:
+					value = Double.toString(values.getDouble());
+					break;
+				default:
+					value = readString(values);
+					break;
+			}
+
+			final String key;
+			if (!brackets) {
+				key = variable;
+			} else {
+				final StringBuilder sb = new StringBuilder(variable).append('[');
+				for (int i = 0; i < indices.length; i++) {
+					if (i > 0)
+						sb.append("][");
+					sb.append(indices[i]);
+				}
+				key = sb.append(']').toString();
+			}
+
+			return new OutputRecord(key, variable, indices, value);
+		}
+
+		@Override
+		public void close() {
+			block = blockCount;
+			remaining = 0;
+		}
+
+		private void nextBlock() {
+			final ByteBuffer buf;
+			try {
+				buf = readBlock(block++);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			final int keysLen = buf.getInt();
+			final int valuesLen = buf.getInt();
+			remaining = buf.getInt();
+			buf.getInt(); // crc
+
+			keys = buf.slice();
+			keys.limit(keysLen);
+			buf.position(buf.position() + keysLen);
+			values = buf.slice();
+			values.limit(valuesLen);
+			prevIndices = new String[0];
+		}
+	}
+
+	/**
+	 * Writes a snapshot of a job's output.
+	 *
+	 * @param output the output to snapshot
+	 * @param f where to store the snapshot
+	 * @throws BoaException if the output could not be read or the snapshot could not be written
+	 */
+	public static void write(final JobOutput output, final File f) throws BoaException {
+		try (final CloseableIterator<OutputRecord> it = output.records()) {
+			write(it, f);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of a stream of records.
+	 *
+	 * @param records the records to snapshot
+	 * @param f where to store the snapshot
+	 * @throws BoaException if the records could not be read or the snapshot could not be written
+	 */
+	public static void write(final CloseableIterator<OutputRecord> records, final File f) throws BoaException {
+		try (final Writer writer = new Writer(f)) {
+			while (records.hasNext())
+				writer.add(records.next());
+			writer.finish();
+		} catch (final UncheckedIOException e) {
+			throw new BoaException(e.getMessage(), e.getCause());
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Encodes records into a snapshot file.
+	 */
+	private static final class Writer implements AutoCloseable {
+		private final CountingOutputStream counter;
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream keys = new ByteArrayOutputStream(BLOCK_SIZE);
+		private final ByteArrayOutputStream values = new ByteArrayOutputStream(BLOCK_SIZE);
+		private final Map<String, Integer> dictionaryIds = new HashMap<String, Integer>();
+		private final List<String> dictionary = new ArrayList<String>();
+		private final List<Long> blockOffsets = new ArrayList<Long>();
+		private String[] prevIndices = new String[0];
+		private int blockRecords = 0;
+		private long recordCount = 0;
+
+		Writer(final File f) throws IOException {
+			counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(f), BLOCK_SIZE));
+			out = new DataOutputStream(counter);
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+		}
+
+		void add(final OutputRecord r) throws IOException {
+			final String[] indices = r.getIndices().toArray(new String[0]);
+
+			int shared = 0;
+			while (shared < indices.length && shared < prevIndices.length && indices[shared].equals(prevIndices[shared]))
+				shared++;
+
+			Varints.writeVarLong(keys, (shared << 1) | (r.getKey().equals(r.getVariable()) ? 0 : 1));
+			writeString(keys, r.getVariable());
+			Varints.writeVarLong(keys, indices.length - shared);
+			for (int i = shared; i < indices.length; i++)
+				writeString(keys, indices[i]);
+			prevIndices = indices;
+
+			writeValue(r.getValue());
+
+			blockRecords++;
+			recordCount++;
+			if (keys.size() + values.size() >= BLOCK_SIZE)
+				flushBlock();
+		}
+
+		void finish() throws IOException {
+			flushBlock();
+
+			// the dictionary, followed by a table of each string's offset
+			final long dictOffset = counter.count;
+			final int[] offsets = new int[dictionary.size()];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = (int)(counter.count - dictOffset);
+				final byte[] bytes = dictionary.get(i).getBytes(StandardCharsets.UTF_8);
+				Varints.writeVarLong(out, bytes.length);
+				out.write(bytes);
+			}
+			final long dictTableOffset = counter.count;
+			for (final int offset : offsets)
+				out.writeInt(offset);
+
+			// the block index
+			final long indexOffset = counter.count;
+			for (final long offset : blockOffsets)
+				out.writeLong(offset);
+
+			out.writeLong(dictOffset);
+			out.writeLong(dictTableOffset);
+			out.writeInt(dictionary.size());
+			out.writeLong(indexOffset);
+			out.writeInt(blockOffsets.size());
+			out.writeLong(recordCount);
+			out.write(MAGIC);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+
+		private void writeValue(final String v) throws IOException {
+			if (!mayBeNumber(v)) {
+				values.write(VALUE_STRING);
+				writeString(values, v);
+				return;
+			}
+
+			try {
+				final long l = Long.parseLong(v);
+				if (Long.toString(l).equals(v)) {
+					values.write(VALUE_LONG);
+					Varints.writeVarLong(values, Varints.zigzag(l));
+					return;
+				}
+			} catch (final NumberFormatException e) {
+				// not an integer
+			}
+
+			try {
+				final double d = Double.parseDouble(v);
+				if (Double.toString(d).equals(v)) {
+					final long bits = Double.doubleToRawLongBits(d);
+					values.write(VALUE_DOUBLE);
+					for (int shift = 56; shift >= 0; shift -= 8)
+						values.write((int)(bits >>> shift));
+					return;
+				}
+			} catch (final NumberFormatException e) {
+				// not a floating point number
+			}
+
+			values.write(VALUE_STRING);
+			writeString(values, v);
+		}
+
+		private static boolean mayBeNumber(final String v) {
+			if (v.isEmpty())
+				return false;
+			final char c = v.charAt(0);
+			return (c >= '0' && c <= '9') || c == '-' || c == '.' || c == 'N' || c == 'I';
+		}
+
+		private void writeString(final ByteArrayOutputStream buf, final String s) throws IOException {
+			Integer id = dictionaryIds.get(s);
+			if (id == null && s.length() <= MAX_DICTIONARY_STRING && dictionary.size() < MAX_DICTIONARY_SIZE) {
+				id = dictionary.size();
+				dictionaryIds.put(s, id);
+				dictionary.add(s);
+			}
+
+			if (id != null) {
+				Varints.writeVarLong(buf, (long)id << 1);
+			} else {
+				final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				Varints.writeVarLong(buf, ((long)bytes.length << 1) | 1);
+				buf.write(bytes);
+			}
+		}
+
+		private void flushBlock() throws IOException {
+			if (blockRecords == 0)
+				return;
+
+			final CRC32 crc = new CRC32();
+			crc.update(keys.toByteArray());
+			crc.update(values.toByteArray());
+
+			blockOffsets.add(counter.count);
+			out.writeInt(keys.size());
+			out.writeInt(values.size());
+			out.writeInt(blockRecords);
+			out.writeInt((int)crc.getValue());
+			keys.writeTo(out);
+			values.writeTo(out);
+
+			keys.reset();
+			values.reset();
+			blockRecords = 0;
+			prevIndices = new String[0];
+		}
+	}
+
+	/**
+	 * Tracks the position in the output, which may be larger than 2GB.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which job ran each (query, dataset) pair, so that submitting the
+ * same query to the same dataset again reuses the existing job instead of
+ * running it again (see {@link BoaClient#setQueryCache(QueryCache)}).
+ *
+ * <p>
+ * Queries are compared after normalizing line endings and trailing
+ * whitespace.  The cache learns about jobs submitted through the client, and
+ * can also learn about past jobs with {@link #index(BoaClient, int)}.  A job
+ * is only reused if it still exists and did not fail.
+ * </p>
+ *
+ * <p>
+ * A cache opened on a file (see {@link #open(File)}) is kept across runs.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class QueryCache {
+	private static final int PAGE_SIZE = 100;
+
+	private final File file;
+	private final Map<String, Integer> jobs = new HashMap<String, Integer>();
+	private final Set<Integer> indexed = new HashSet<Integer>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Creates an empty cache kept only in memory.
+	 */
+	public QueryCache() {
+		this.file = null;
+	}
+
+	private QueryCache(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens a cache kept in a file, creating it if needed.
+	 *
+	 * @param f the cache file
+	 * @return the cache
+	 * @throws BoaException if the file could not be read
+	 */
+	public static QueryCache open(final File f) throws BoaException {
+		final QueryCache cache = new QueryCache(f);
+		if (!f.exists())
+			return cache;
+
+		try (final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				final String[] parts = line.split(" ");
+				if (parts.length == 3 && "+".equals(parts[0]))
+					cache.jobs.put(parts[1], Integer.parseInt(parts[2]));
+				else if (parts.length == 2 && "-".equals(parts[0]))
+					cache.jobs.remove(parts[1]);
+				else if (parts.length == 2 && "i".equals(parts[0]))
+					cache.indexed.add(Integer.parseInt(parts[1]));
+			}
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		} catch (final NumberFormatException e) {
+			throw new BoaException("Invalid query cache '" + f + "'.", e);
+		}
+		return cache;
+	}
+
+	/**
+	 * Learns the queries of a user's most recent finished jobs.  Jobs already
+	 * looked at are skipped, so calling this again only fetches the source of
+	 * new jobs.
+	 *
+	 * @param client the (logged in) client to read jobs with
+	 * @param maxJobs how many of the most recent jobs to look at
+	 * @return how many jobs were added to the cache
+	 * @throws BoaException if there was a problem reading from the server or writing the cache
+	 * @throws NotLoggedInException if not already logged in to the API
+	 */
+	public int index(final BoaClient client, final int maxJobs) throws BoaException, NotLoggedInException {
+		int added = 0;
+
+		for (int offset = 0; offset < maxJobs; offset += PAGE_SIZE) {
+			final List<JobHandle> page = client.getJobList(offset, Math.min(PAGE_SIZE, maxJobs - offset));
+			for (final JobHandle job : page) {
+				synchronized (this) {
+					if (indexed.contains(job.getId()))
+						continue;
+				}
+
+				if (failed(job)) {
+					markIndexed(job.getId());
+				} else if (job.getExecutionStatus() == ExecutionStatus.FINISHED) {
+					put(job.getSource(), job.getDataset(), job.getId());
+					markIndexed(job.getId());
+					added++;
+				}
+			}
+			if (page.size() < PAGE_SIZE)
+				break;
+		}
+
+		return added;
+	}
+
+	/**
+	 * Returns the number of (query, dataset) pairs in the cache.
+	 *
+	 * @return the size of the cache
+	 */
+	public synchronized int size() {
+		return jobs.size();
+	}
+
+	/**
+	 * Returns how many submissions reused an existing job.
+	 *
+	 * @return the number of cache hits
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns how many submissions did not find a reusable job.
+	 *
+	 * @return the number of cache misses
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Finds a reusable job for a query, or <code>null</code> if there is none.
+	 */
+	JobHandle find(final BoaClient client, final String query, final InputHandle dataset) throws NotLoggedInException {
+		final String key = key(query, dataset);
+		final Integer id;
+		synchronized (this) {
+			id = jobs.get(key);
+		}
+
+		if (id != null) {
+			try {
+				final JobHandle job = client.getJob(id);
+				if (!failed(job)) {
+					hits.incrementAndGet();
+					return job;
+				}
+			} catch (final NotLoggedInException e) {
+				throw e;
+			} catch (final BoaException e) {
+				// the job was deleted
+			}
+			remove(key, id);
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Remembers the job that ran a query.
+	 */
+	synchronized void put(final String query, final InputHandle dataset, final int jobId) throws BoaException {
+		final String key = key(query, dataset);
+		jobs.put(key, jobId);
+		append("+ " + key + " " + jobId);
+	}
+
+	private synchronized void remove(final String key, final int jobId) {
+		final Integer current = jobs.get(key);
+		if (current == null || current != jobId)
+			return;
+		jobs.remove(key);
+		try {
+			append("- " + key);
+		} catch (final BoaException e) {
+			// reloading the cache only costs one more check of the job
+		}
+	}
+
+	private synchronized void markIndexed(final int jobId) throws BoaException {
+		indexed.add(jobId);
+		append("i " + jobId);
+	}
+
+	private void append(final String line) throws BoaException {
+		if (file == null)
+			return;
+
+		try (final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+			w.write(line);
+			w.newLine();
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	private static boolean failed(final JobHandle job) {
+		return job.getCompilerStatus() == CompileStatus.ERROR || job.getExecutionStatus() == ExecutionStatus.ERROR;
+	}
+
+	static String key(final String query, final InputHandle dataset) {
+		return Util.sha256((dataset.getId() + "\0" + normalize(query)).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Normalizes line endings, strips trailing whitespace from each line and
+	 * leading/trailing blank lines.
+	 */
+	static String normalize(final String query) {
+		final String[] lines = query.split("\r\n|\r|\n", -1);
+		final StringBuilder sb = new StringBuilder(query.length());
+		for (final String line : lines) {
+			int end = line.length();
+			while (end > 0 && Character.isWhitespace(line.charAt(end - 1)))
+				end--;
+			sb.append(line, 0, end).append('\n');
+		}
+		return sb.toString().trim();
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the API calls made by a client (see
+ * {@link BoaClient#setRequestLimiter(RequestLimiter)}).
+ *
+ * <p>
+ * Calls are limited in two ways.  First, calls are paced by a global rate and
+ * optionally a rate for each API method.  Second, the number of calls active
+ * at once is limited by an adaptive limit: each successful call raises the
+ * limit a little (up to the maximum), while a call that fails to reach the
+ * server or takes much longer than usual halves it.  The limit therefore
+ * settles near what the server can handle.
+ * </p>
+ *
+ * <p>
+ * A limiter may be shared by several clients to limit all of them together.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class RequestLimiter {
+	private static final int INITIAL_LIMIT = 4;
+	/** the factor the limit is multiplied by on errors or slow calls */
+	private static final double BACKOFF = 0.5;
+	/** a call slower than this many times the usual latency counts as slow */
+	private static final double LATENCY_TOLERANCE = 2.0;
+	/** how quickly the usual latency follows slower calls */
+	private static final double BASELINE_DRIFT = 0.01;
+
+	private final TokenBucket global;
+	private final Map<String, TokenBucket> methods = new ConcurrentHashMap<String, TokenBucket>();
+	private final int maxConcurrent;
+
+	private final Map<String, Double> baselines = new HashMap<String, Double>();
+	private double limit;
+	private int active = 0;
+	private long lastBackoff = System.nanoTime();
+
+	/**
+	 * Creates a limiter.
+	 *
+	 * @param callsPerSecond the most calls per second, or 0 for no limit
+	 * @param maxConcurrent the most calls active at once
+	 */
+	public RequestLimiter(final double callsPerSecond, final int maxConcurrent) {
+		if (maxConcurrent < 1)
+			throw new IllegalArgumentException("Argument 'maxConcurrent' must be positive.");
+
+		this.global = callsPerSecond > 0 ? new TokenBucket(callsPerSecond, Math.max(1, callsPerSecond)) : null;
+		this.maxConcurrent = maxConcurrent;
+		this.limit = Math.min(INITIAL_LIMIT, maxConcurrent);
+	}
+
+	/**
+	 * Sets the rate for one API method (such as <code>boa.submit</code>),
+	 * in addition to the global rate.
+	 *
+	 * @param method the API method name
+	 * @param callsPerSecond the most calls per second, or 0 for no limit
+	 */
+	public void setMethodRate(final String method, final double callsPerSecond) {
+		if (callsPerSecond > 0)
+			methods.put(method, new TokenBucket(callsPerSecond, Math.max(1, callsPerSecond)));
+		else
+			methods.remove(method);
+	}
+
+	/**
+	 * Returns the current limit on calls active at once.
+	 *
+	 * @return the concurrency limit
+	 */
+	public synchronized int getConcurrencyLimit() {
+		return (int)limit;
+	}
+
+	/**
+	 * Returns the number of calls currently active.
+	 *
+	 * @return the number of active calls
+	 */
+	public synchronized int getActiveCount() {
+		return active;
+	}
+
+	/**
+	 * Waits until a call to the given method is allowed.
+	 *
+	 * @return the time the call started, to pass to {@link #release(String, long, boolean)}
+	 */
+	long acquire(final String method) throws InterruptedException {
+		final TokenBucket b = methods.get(method);
+		if (b != null)
+			b.acquire(1);
+		if (global != null)
+			global.acquire(1);
+
+		synchronized (this) {
+			while (active >= (int)limit)
+				wait();
+			active++;
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Ends a call and adjusts the concurrency limit.
+	 *
+	 * @param method the API method called
+	 * @param start the time the call started
+	 * @param overloaded whether the call failed in a way that suggests the server is overloaded
+	 */
+	synchronized void release(final String method, final long start, final boolean overloaded) {
+		final long now = System.nanoTime();
+		final double latency = now - start;
+
+		final Double baseline = baselines.get(method);
+		final boolean slow = baseline != null && latency > LATENCY_TOLERANCE * baseline;
+		if (baseline == null || latency < baseline)
+			baselines.put(method, latency);
+		else
+			baselines.put(method, baseline + (latency - baseline) * BASELINE_DRIFT);
+
+		if (overloaded || slow) {
+			// calls started before the last backoff saw the old limit, so don't count them again
+			if (start > lastBackoff) {
+				limit = Math.max(1, limit * BACKOFF);
+				lastBackoff = now;
+			}
+		} else {
+			limit = Math.min(maxConcurrent, limit + 1 / limit);
+		}
+
+		active--;
+		notifyAll();
+	}
+}
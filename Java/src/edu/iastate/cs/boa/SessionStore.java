@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps a client's session in a file, so later processes can reuse it
+ * instead of logging in again (see {@link BoaClient#setSessionStore(SessionStore)}).
+ *
+ * <p>
+ * The session is encrypted (AES-GCM) with a key derived from the user's
+ * password, so it can only be restored by someone who could log in anyway.
+ * A restored session is not checked until the first call; if it has expired
+ * by then, the client logs in again and saves the new session.
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class SessionStore {
+	private static final int MAGIC = 0x424f4153; // "BOAS"
+	private static final int VERSION = 1;
+	private static final int SALT_LENGTH = 16;
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_BITS = 128;
+	private static final int KEY_BITS = 128;
+	private static final int ITERATIONS = 20000;
+
+	private final File file;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * A restored session.
+	 */
+	static final class Session {
+		final String cookie;
+		final String token;
+
+		Session(final String cookie, final String token) {
+			this.cookie = cookie;
+			this.token = token;
+		}
+	}
+
+	/**
+	 * Creates a store kept in the given file.
+	 *
+	 * @param file the file to keep the session in
+	 */
+	public SessionStore(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Forgets the saved session, if any.
+	 */
+	public synchronized void clear() {
+		file.delete();
+	}
+
+	/**
+	 * Restores the session saved for a user of an endpoint.
+	 *
+	 * @return the session, or <code>null</code> if none was saved (or it can not be decrypted)
+	 */
+	synchronized Session load(final String endpoint, final String username, final String password) {
+		if (!file.exists())
+			return null;
+
+		try (final DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			final byte[] salt = new byte[SALT_LENGTH];
+			final byte[] iv = new byte[IV_LENGTH];
+			in.readFully(salt);
+			in.readFully(iv);
+			final int length = in.readInt();
+			// a corrupt length could not be allocated, or read past the end
+			if (length < 0 || length > file.length())
+				return null;
+			final byte[] data = new byte[length];
+			in.readFully(data);
+
+			final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, key(password, salt), new GCMParameterSpec(TAG_BITS, iv));
+			cipher.updateAAD(aad(endpoint, username));
+			final String[] parts = new String(cipher.doFinal(data), StandardCharsets.UTF_8).split("\n", -1);
+			if (parts.length != 2)
+				return null;
+			return new Session(parts[0], parts[1]);
+		} catch (final IOException e) {
+			return null;
+		} catch (final GeneralSecurityException e) {
+			// another user, endpoint or password
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the session of a user of an endpoint, replacing any saved session.
+	 */
+	synchronized void save(final String endpoint, final String username, final String password, final String cookie, final String token) throws BoaException {
+		final byte[] salt = new byte[SALT_LENGTH];
+		final byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(salt);
+		random.nextBytes(iv);
+
+		final File tmp = new File(file.getPath() + ".tmp");
+		try {
+			final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, key(password, salt), new GCMParameterSpec(TAG_BITS, iv));
+			cipher.updateAAD(aad(endpoint, username));
+			final byte[] data = cipher.doFinal((cookie + "\n" + token).getBytes(StandardCharsets.UTF_8));
+
+			try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+				// only the owner may read the session
+				tmp.setReadable(false, false);
+				tmp.setReadable(true, true);
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.write(salt);
+				out.write(iv);
+				out.writeInt(data.length);
+				out.write(data);
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("Could not write '" + file + "'.");
+			}
+		} catch (final IOException e) {
+			tmp.delete();
+			throw new BoaException(e.getMessage(), e);
+		} catch (final GeneralSecurityException e) {
+			tmp.delete();
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	private static SecretKeySpec key(final String password, final byte[] salt) throws GeneralSecurityException {
+		final char[] chars = password.toCharArray();
+		final PBEKeySpec spec = new PBEKeySpec(chars, salt, ITERATIONS, KEY_BITS);
+		try {
+			final byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+			return new SecretKeySpec(key, "AES");
+		} finally {
+			spec.clearPassword();
+			Arrays.fill(chars, '\0');
+		}
+	}
+
+	/**
+	 * Binds the encrypted session to its endpoint and user.
+	 */
+	private static byte[] aad(final String endpoint, final String username) {
+		return (endpoint + "\n" + username).getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent identical calls.  While a call for a key is in
+ * flight, other callers with the same key wait for it and share its result
+ * (or failure) instead of making their own call.
+ *
+ * @author rdyer
+ */
+final class SingleFlight<K, V> {
+	private final ConcurrentHashMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * Makes a call, or joins the identical call already in flight.
+	 *
+	 * @param key identifies the call
+	 * @param call makes the call
+	 * @return the call's result
+	 */
+	V execute(final K key, final Callable<V> call) throws Exception {
+		final FutureTask<V> task = new FutureTask<V>(call);
+		FutureTask<V> flight = calls.putIfAbsent(key, task);
+		if (flight == null) {
+			flight = task;
+			try {
+				task.run();
+			} finally {
+				calls.remove(key, task);
+			}
+		}
+
+		try {
+			return flight.get();
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter.  Tokens are added at a fixed rate up to a
+ * maximum burst size.  A request larger than the available tokens is
+ * allowed to go into debt, which later requests must wait out.
+ *
+ * @author rdyer
+ */
+final class TokenBucket {
+	private final double ratePerNano;
+	private final double burst;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Creates a bucket that starts full.
+	 *
+	 * @param ratePerSecond how many tokens are added each second
+	 * @param burst the most tokens the bucket can hold
+	 */
+	TokenBucket(final double ratePerSecond, final double burst) {
+		if (ratePerSecond <= 0)
+			throw new IllegalArgumentException("Argument 'ratePerSecond' must be positive.");
+
+		this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Takes tokens, waiting until the bucket is no longer in debt.
+	 *
+	 * @param n the number of tokens to take
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void acquire(final long n) throws InterruptedException {
+		final long wait = reserve(n);
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}
+
+	/**
+	 * Takes tokens only if they are available now.
+	 *
+	 * @param n the number of tokens to take
+	 * @return <code>true</code> if the tokens were taken
+	 */
+	synchronized boolean tryAcquire(final long n) {
+		refill();
+		if (tokens < n)
+			return false;
+		tokens -= n;
+		return true;
+	}
+
+	private synchronized long reserve(final long n) {
+		refill();
+		tokens -= n;
+		if (tokens >= 0)
+			return 0;
+		return (long)(-tokens / ratePerNano);
+	}
+
+	private void refill() {
+		final long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+		lastRefill = now;
+	}
+}
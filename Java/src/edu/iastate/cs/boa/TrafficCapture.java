@@ -0,0 +1,390 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the traffic of a client to a file, or replays it from one instead
+ * of talking to the server (see {@link BoaClient#setTrafficCapture(TrafficCapture)}).
+ *
+ * <p>
+ * A recording holds every API call's response and every downloaded output,
+ * with how long each took.  A client replaying it gets the same responses
+ * for the same requests without any network traffic, either as fast as
+ * possible or after the recorded latencies, so changes to the client can be
+ * measured repeatably and offline.  When a request was made several times
+ * while recording, the responses are replayed in the same order, and the
+ * last one is repeated if it is asked for more often.
+ * </p>
+ *
+ * <p>
+ * Downloads are recorded as the decoded output, however the server encoded
+ * them, and are buffered in temporary files rather than in memory, both
+ * while recording and while replaying.
+ * </p>
+ *
+ * <p>
+ * Recordings are gzip compressed.  <b>A recording contains the session id
+ * returned when logging in, so it should be kept as private as the
+ * password.</b>
+ * </p>
+ *
+ * @author rdyer
+ */
+public final class TrafficCapture implements AutoCloseable {
+	private static final int MAGIC = 0x424f4143; // "BOAC"
+	private static final int VERSION = 1;
+
+	/** the kinds of exchanges recorded */
+	static final byte API_CALL = 1;
+	static final byte DOWNLOAD = 2;
+
+	/** larger replayed bodies are kept in temporary files */
+	private static final int MAX_IN_MEMORY = 1024 * 1024;
+
+	/**
+	 * One recorded response.
+	 */
+	static final class Exchange {
+		/** the HTTP status code */
+		final int status;
+		/** the HTTP status message, for failed calls */
+		final String message;
+		/** the response's content encoding, or <code>null</code> */
+		final String encoding;
+		/** how long the exchange took, in nanoseconds */
+		final long nanos;
+		/** the raw response body, if kept in memory */
+		private final byte[] body;
+		/** the file holding the raw response body, if not kept in memory */
+		private final File file;
+
+		Exchange(final int status, final String message, final String encoding, final long nanos, final byte[] body, final File file) {
+			this.status = status;
+			this.message = message;
+			this.encoding = encoding;
+			this.nanos = nanos;
+			this.body = body;
+			this.file = file;
+		}
+
+		/**
+		 * Returns a stream over the raw response body.
+		 */
+		InputStream open() throws IOException {
+			if (body != null)
+				return new ByteArrayInputStream(body);
+			return new BufferedInputStream(new FileInputStream(file));
+		}
+	}
+
+	private final DataOutputStream out;
+	private final Map<String, List<Exchange>> recorded;
+	private final Map<String, Integer> replayed;
+	private final boolean withLatency;
+	/** the temporary files holding replayed bodies */
+	private final List<File> spilled;
+	private boolean closed = false;
+
+	private TrafficCapture(final DataOutputStream out, final Map<String, List<Exchange>> recorded, final List<File> spilled, final boolean withLatency) {
+		this.out = out;
+		this.recorded = recorded;
+		this.spilled = spilled;
+		this.replayed = recorded == null ? null : new HashMap<String, Integer>();
+		this.withLatency = withLatency;
+	}
+
+	/**
+	 * Starts a recording, replacing any existing file.
+	 *
+	 * @param f where to record the traffic
+	 * @return the capture to record with
+	 * @throws BoaException if the file could not be created
+	 */
+	public static TrafficCapture record(final File f) throws BoaException {
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(f))));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			return new TrafficCapture(out, null, null, false);
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Loads a recording to replay.
+	 *
+	 * @param f the recorded traffic
+	 * @param withLatency whether each response waits as long as it took when recorded
+	 * @return the capture to replay with
+	 * @throws BoaException if the file could not be read
+	 */
+	public static TrafficCapture replay(final File f, final boolean withLatency) throws BoaException {
+		final Map<String, List<Exchange>> recorded = new HashMap<String, List<Exchange>>();
+		final List<File> spilled = new ArrayList<File>();
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f))))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new BoaException("'" + f + "' is not a traffic recording.");
+
+			for (;;) {
+				final byte kind;
+				try {
+					kind = in.readByte();
+				} catch (final EOFException e) {
+					break;
+				}
+				final String key = kind + readString(in);
+				final int status = Varints.readVarInt(in);
+				final String message = in.readBoolean() ? readString(in) : null;
+				final String encoding = in.readBoolean() ? readString(in) : null;
+				final long nanos = Varints.readVarLong(in);
+				final long length = Varints.readVarLong(in);
+
+				byte[] body = null;
+				File file = null;
+				if (length <= MAX_IN_MEMORY) {
+					body = new byte[(int)length];
+					in.readFully(body);
+				} else {
+					file = File.createTempFile("boa-replay", ".body");
+					file.deleteOnExit();
+					spilled.add(file);
+					try (final OutputStream o = new BufferedOutputStream(new FileOutputStream(file))) {
+						copy(in, o, length);
+					}
+				}
+
+				List<Exchange> list = recorded.get(key);
+				if (list == null) {
+					list = new ArrayList<Exchange>(1);
+					recorded.put(key, list);
+				}
+				list.add(new Exchange(status, message, encoding, nanos, body, file));
+			}
+		} catch (final IOException e) {
+			for (final File file : spilled)
+				file.delete();
+			throw new BoaException(e.getMessage(), e);
+		}
+		return new TrafficCapture(null, recorded, spilled, withLatency);
+	}
+
+	/**
+	 * Returns whether the capture replays traffic, rather than recording it.
+	 *
+	 * @return <code>true</code> when replaying
+	 */
+	public boolean isReplaying() {
+		return recorded != null;
+	}
+
+	/**
+	 * Finishes writing a recording.  Traffic after this is not recorded.
+	 * When replaying, deletes the temporary files holding large responses,
+	 * so nothing can be replayed after this.
+	 *
+	 * @throws BoaException if the recording could not be written
+	 */
+	@Override
+	public synchronized void close() throws BoaException {
+		if (closed)
+			return;
+		closed = true;
+		if (out == null) {
+			for (final File file : spilled)
+				file.delete();
+			return;
+		}
+		try {
+			out.close();
+		} catch (final IOException e) {
+			throw new BoaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Records one exchange.
+	 */
+	synchronized void record(final byte kind, final String key, final int status, final String message, final String encoding, final long nanos, final byte[] body) throws IOException {
+		if (closed)
+			return;
+		writeHeader(kind, key, status, message, encoding, nanos, body.length);
+		out.write(body);
+	}
+
+	/**
+	 * Records one exchange whose body is in a file.
+	 */
+	private synchronized void record(final byte kind, final String key, final int status, final long nanos, final File body) throws IOException {
+		if (closed)
+			return;
+		final long length = body.length();
+		writeHeader(kind, key, status, null, null, nanos, length);
+		try (final InputStream in = new FileInputStream(body)) {
+			copy(in, out, length);
+		}
+	}
+
+	private void writeHeader(final byte kind, final String key, final int status, final String message, final String encoding, final long nanos, final long length) throws IOException {
+		out.writeByte(kind);
+		writeString(out, key);
+		Varints.writeVarLong(out, status);
+		out.writeBoolean(message != null);
+		if (message != null)
+			writeString(out, message);
+		out.writeBoolean(encoding != null);
+		if (encoding != null)
+			writeString(out, encoding);
+		Varints.writeVarLong(out, nanos);
+		Varints.writeVarLong(out, length);
+	}
+
+	/**
+	 * Returns a stream that passes a (decoded) download through, buffering
+	 * it in a temporary file, and records it once it was read to the end and
+	 * closed.  A download closed before its end, such as one that failed, is
+	 * not recorded.
+	 */
+	InputStream recording(final String key, final long start, final InputStream in) throws IOException {
+		final File tmp = File.createTempFile("boa-capture", ".body");
+		tmp.deleteOnExit();
+		final OutputStream body;
+		try {
+			body = new BufferedOutputStream(new FileOutputStream(tmp));
+		} catch (final IOException e) {
+			tmp.delete();
+			throw e;
+		}
+
+		return new FilterInputStream(in) {
+			private boolean ended = false;
+			private boolean done = false;
+
+			@Override
+			public int read() throws IOException {
+				final int b = super.read();
+				if (b == -1)
+					ended = true;
+				else
+					body.write(b);
+				return b;
+			}
+
+			@Override
+			public int read(final byte[] buf, final int off, final int len) throws IOException {
+				final int n = super.read(buf, off, len);
+				if (n == -1)
+					ended = true;
+				else if (n > 0)
+					body.write(buf, off, n);
+				return n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (done)
+					return;
+				done = true;
+				try {
+					super.close();
+					body.close();
+					if (ended)
+						record(DOWNLOAD, key, 200, System.nanoTime() - start, tmp);
+				} finally {
+					body.close();
+					tmp.delete();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the next recorded response to a request, after its recorded
+	 * latency if replaying with latencies.
+	 *
+	 * @throws IOException if the request was never recorded
+	 */
+	Exchange replay(final byte kind, final String key) throws IOException {
+		final Exchange ex;
+		synchronized (this) {
+			final List<Exchange> list = recorded.get(kind + key);
+			if (list == null)
+				throw new IOException("No recorded response for '" + key + "'.");
+			final Integer n = replayed.get(kind + key);
+			final int next = n == null ? 0 : n;
+			ex = list.get(Math.min(next, list.size() - 1));
+			replayed.put(kind + key, next + 1);
+		}
+
+		if (withLatency) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(ex.nanos);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while replaying '" + key + "'.");
+			}
+		}
+		return ex;
+	}
+
+	private static void copy(final InputStream in, final OutputStream out, final long length) throws IOException {
+		final byte[] buf = new byte[64 * 1024];
+		long left = length;
+		while (left > 0) {
+			final int n = in.read(buf, 0, (int)Math.min(buf.length, left));
+			if (n < 0)
+				throw new EOFException();
+			out.write(buf, 0, n);
+			left -= n;
+		}
+	}
+
+	private static void writeString(final DataOutputStream out, final String s) throws IOException {
+		final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		Varints.writeVarLong(out, b.length);
+		out.write(b);
+	}
+
+	private static String readString(final DataInputStream in) throws IOException {
+		final byte[] b = new byte[Varints.readVarInt(in)];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
@@ -16,12 +16,18 @@
  */
 package edu.iastate.cs.boa;
 
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
 
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+
 /**
  * Utilities for handling data from the server.
  *
@@ -46,6 +52,68 @@ final class Util {
 		return new InputHandle(strToInt((String)input.get("id")), (String)input.get("name"));
 	}
 
+	final static OutputRecord parseRecord(final String line) {
+		// e.g.: counts[java][2013] = 42
+		String key;
+		String value;
+		int idx = line.indexOf("] = ");
+		if (idx != -1) {
+			key = line.substring(0, idx + 1);
+			value = line.substring(idx + 4);
+		} else if ((idx = line.indexOf(" = ")) != -1) {
+			key = line.substring(0, idx);
+			value = line.substring(idx + 3);
+		} else {
+			key = line;
+			value = "";
+		}
+
+		final int bracket = key.indexOf('[');
+		if (bracket == -1 || !key.endsWith("]"))
+			return new OutputRecord(key, key, new String[0], value);
+
+		final String variable = key.substring(0, bracket);
+		final String inner = key.substring(bracket + 1, key.length() - 1);
+		final String[] indices = inner.isEmpty() ? new String[0] : inner.split("\\]\\[", -1);
+		return new OutputRecord(key, variable, indices, value);
+	}
+
+	final static String sha256(final byte[] data) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+			final StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (final byte b : digest)
+				sb.append(String.format("%02x", b & 0xff));
+			return sb.toString();
+		} catch (final NoSuchAlgorithmException e) {
+			// every JVM supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns whether a failure means the request did not reach the server
+	 * (or its answer did not come back), as opposed to an error from the
+	 * server itself.
+	 */
+	final static boolean isTransportFailure(final Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause())
+			if (t instanceof IOException || t instanceof XmlRpcHttpTransportException || t instanceof XmlRpcClientException)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns whether a failure came from the caller's own {@link Deadline}
+	 * passing or being cancelled, rather than from the call itself.
+	 */
+	final static boolean isDeadlineFailure(final Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause())
+			if (Deadline.EXCEEDED.equals(t.getMessage()) || Deadline.CANCELLED.equals(t.getMessage()))
+				return true;
+		return false;
+	}
+
 	private static void verifyKeys(final Map<?, ?> m, final String... keys) throws BoaException {
 		for (final String k : keys)
 			if (!m.containsKey(k))
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014, Robert Dyer,
+ *                 and Bowling Green State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.iastate.cs.boa;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Utilities for reading and writing variable-length (LEB128) integers.
+ *
+ * @author rdyer
+ */
+final class Varints {
+	private Varints() { }
+
+	static void writeVarLong(final OutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int)v);
+	}
+
+	static long readVarLong(final ByteBuffer buf) {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = buf.get();
+			v |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IllegalStateException("malformed varint");
+	}
+
+	static long readVarLong(final DataInput in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = in.readByte();
+			v |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("malformed varint");
+	}
+
+	static int readVarInt(final ByteBuffer buf) {
+		return (int)readVarLong(buf);
+	}
+
+	static int readVarInt(final DataInput in) throws IOException {
+		return (int)readVarLong(in);
+	}
+
+	static long zigzag(final long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(final long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+}